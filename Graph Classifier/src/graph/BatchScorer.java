@@ -0,0 +1,459 @@
+package graph;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.CSVLoader;
+
+/**
+ * Scores a data file with a trained GraphClassifier, reading and writing it
+ * incrementally so files larger than memory can be scored.
+ *
+ * The calling thread groups rows into chunks and hands them to a pool of scoring
+ * threads. A writer thread puts the scored chunks back into input order and writes
+ * one line per row: the row number, the predicted class and the probability of
+ * each class. The number of chunks between the reader and the writer is bounded,
+ * so the reader blocks when scoring or writing falls behind and memory use stays
+ * flat regardless of file size.
+ *
+ * Rows are scored with the model of a ModelHolder, so a retrained model can be
+ * swapped in while a file is being scored; each chunk is scored by a single model.
+ * The file must have the attributes the model was trained on, and the predicted
+ * class is named by the class labels of the training data, not those of the file.
+ *
+ * @author mchristopher
+ *
+ */
+public class BatchScorer {
+
+	/** Holder of the model used to score each chunk */
+	ModelHolder models;
+
+	/** Number of scoring threads */
+	int numThreads;
+
+	/** Number of rows in each chunk */
+	int chunkSize = 1024;
+
+	/** Largest number of chunks read but not yet written */
+	int maxChunksInFlight;
+
+	/**
+	 * Creates a scorer using the given number of scoring threads.
+	 *
+	 * @param model
+	 *   Trained model, concurrent inference is enabled on it
+	 * @param numThreads
+	 *   Number of scoring threads
+	 * @throws Exception
+	 *   If the model cannot be compiled for concurrent inference
+	 */
+	public BatchScorer(GraphClassifier model, int numThreads) throws Exception{
+		this(new ModelHolder(model, null), numThreads);
+	}
+
+	/**
+	 * Creates a scorer using the given number of scoring threads, scoring with whichever
+	 * model the holder serves when each chunk is scored.
+	 *
+	 * @param models
+	 *   Holder of the model to score with
+	 * @param numThreads
+	 *   Number of scoring threads
+	 */
+	public BatchScorer(ModelHolder models, int numThreads){
+		this.models = models;
+		this.numThreads = numThreads;
+		this.maxChunksInFlight = 4*numThreads;
+	}
+
+	/**
+	 * Scores every row of the input file and writes the predictions to the output.
+	 * The file type is determined from its extension (csv or arff), and the last
+	 * attribute is taken to be the class unless the file sets one. Its attributes
+	 * must match those the model was trained on, see checkHeader().
+	 *
+	 * @param input
+	 *   Data file to score
+	 * @param output
+	 *   File to write predictions to
+	 * @return
+	 *   Number of rows scored
+	 * @throws Exception
+	 */
+	public long score(File input, File output) throws Exception{
+
+		AbstractFileLoader loader;
+
+		//Check for csv file
+		if(input.getName().endsWith("csv")){
+			loader = new CSVLoader();
+		}
+		//Not csv, assume arff
+		else{
+			loader = new ArffLoader();
+		}
+		loader.setFile(input);
+
+		Writer out = new BufferedWriter(new FileWriter(output));
+		try{
+			return score(loader, out);
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Scores every row read from the loader and writes the predictions to out.
+	 *
+	 * @param loader
+	 *   Source of rows, read incrementally
+	 * @param out
+	 *   Destination of predictions
+	 * @return
+	 *   Number of rows scored
+	 * @throws Exception
+	 */
+	public long score(AbstractFileLoader loader, Writer out) throws Exception{
+
+		final Instances structure = loader.getStructure();
+		if(structure.classIndex() < 0){
+			structure.setClassIndex(structure.numAttributes() - 1);
+		}
+
+		Pipeline pipe = new Pipeline(structure, out);
+		pipe.check(models.served());
+
+		Thread[] scorers = new Thread[numThreads];
+		for(int i = 0; i < numThreads; ++i){
+			scorers[i] = pipe.scoringThread(i);
+			scorers[i].start();
+		}
+
+		Thread writer = pipe.writerThread();
+		writer.start();
+
+		//Read on this thread
+		long rows = 0;
+		long seq = 0;
+		try{
+			Chunk chunk = new Chunk(seq, rows, chunkSize);
+			Instance inst;
+
+			while(pipe.error == null && (inst = loader.getNextInstance(structure)) != null){
+				chunk.rows[chunk.size++] = inst;
+				++rows;
+
+				if(chunk.size == chunkSize){
+					pipe.submit(chunk);
+					chunk = new Chunk(++seq, rows, chunkSize);
+				}
+			}
+
+			if(chunk.size > 0){
+				pipe.submit(chunk);
+				++seq;
+			}
+		}
+		catch(Exception e){
+			pipe.fail(e);
+		}
+		finally{
+			for(int i = 0; i < numThreads; ++i){
+				pipe.toScore.put(Chunk.END);
+			}
+		}
+
+		for(int i = 0; i < numThreads; ++i){
+			scorers[i].join();
+		}
+		pipe.toWrite.put(Chunk.END);
+		writer.join();
+
+		if(pipe.error != null){
+			throw pipe.error;
+		}
+
+		out.flush();
+		return rows;
+	}
+
+	/**
+	 * Rows read together, scored by one thread and written together.
+	 */
+	static class Chunk{
+
+		/** Marks the end of the input */
+		static final Chunk END = new Chunk(-1, 0, 0);
+
+		/** Position of this chunk in the input */
+		final long seq;
+
+		/** Position in the input of the first row */
+		final long firstRow;
+
+		final Instance[] rows;
+
+		int size = 0;
+
+		/** Class distribution of each row, once scored */
+		double[][] dists;
+
+		/** Training header of the model that scored the chunk, naming its classes */
+		Instances header;
+
+		Chunk(long seq, long firstRow, int capacity){
+			this.seq = seq;
+			this.firstRow = firstRow;
+			this.rows = new Instance[capacity];
+		}
+	}
+
+	/**
+	 * Queues and threads for a single call to score().
+	 */
+	class Pipeline{
+
+		final Instances structure;
+
+		final Writer out;
+
+		/** Chunks waiting to be scored */
+		final BlockingQueue<Chunk> toScore = new ArrayBlockingQueue<Chunk>(maxChunksInFlight + numThreads);
+
+		/** Chunks scored but not written. Bounded by inFlight. */
+		final BlockingQueue<Chunk> toWrite = new LinkedBlockingQueue<Chunk>();
+
+		/** One permit per chunk that may be between the reader and the writer */
+		final Semaphore inFlight = new Semaphore(maxChunksInFlight);
+
+		volatile Exception error;
+
+		/** Last model whose training header was checked against structure */
+		volatile GraphClassifier checked;
+
+		Pipeline(Instances structure, Writer out){
+			this.structure = structure;
+			this.out = out;
+		}
+
+		/** Blocks until the chunk can be accepted without exceeding maxChunksInFlight */
+		void submit(Chunk chunk) throws InterruptedException{
+			inFlight.acquire();
+			toScore.put(chunk);
+		}
+
+		/**
+		 * Checks the input against the training header of a model, once per model.
+		 */
+		void check(GraphClassifier model){
+			if(model != checked){
+				checkHeader(model.getHeader(), structure);
+				checked = model;
+			}
+		}
+
+		void fail(Exception e){
+			if(error == null){
+				error = e;
+			}
+		}
+
+		Thread scoringThread(int i){
+			return new Thread("batch-scorer-" + i){
+				public void run(){
+					try{
+						Chunk chunk;
+						while((chunk = toScore.take()) != Chunk.END){
+							try{
+								if(error == null){
+									GraphClassifier model = models.served();
+									check(model);
+									chunk.header = model.getHeader();
+									chunk.dists = model.distributionsForInstances(chunk.rows, chunk.size);
+									Arrays.fill(chunk.rows, null);
+								}
+							}
+							catch(Exception e){
+								fail(e);
+							}
+
+							//Failed chunks are still passed on so their permits are released
+							toWrite.put(chunk);
+						}
+					}
+					catch(InterruptedException e){
+						fail(e);
+					}
+				}
+			};
+		}
+
+		Thread writerThread(){
+			return new Thread("batch-writer"){
+				public void run(){
+
+					HashMap<Long, Chunk> pending = new HashMap<Long, Chunk>();
+					long next = 0;
+
+					try{
+						Chunk chunk;
+						while((chunk = toWrite.take()) != Chunk.END){
+							pending.put(chunk.seq, chunk);
+
+							//Write every chunk that is now in order
+							while((chunk = pending.remove(next)) != null){
+								if(error == null){
+									write(chunk, chunk.header.classAttribute());
+								}
+								++next;
+								inFlight.release();
+							}
+						}
+					}
+					catch(Exception e){
+						fail(e);
+					}
+					finally{
+						//Never leave the reader blocked on a permit
+						inFlight.release(maxChunksInFlight);
+					}
+				}
+			};
+		}
+
+		void write(Chunk chunk, Attribute cls) throws IOException{
+
+			StringBuilder line = new StringBuilder();
+
+			for(int r = 0; r < chunk.size; ++r){
+				double[] dist = chunk.dists[r];
+
+				line.setLength(0);
+				line.append(chunk.firstRow + r).append(',');
+				line.append(cls.value(Utils.maxIndex(dist)));
+				for(int k = 0; k < dist.length; ++k){
+					line.append(',').append(dist[k]);
+				}
+				line.append('\n');
+
+				out.write(line.toString());
+			}
+		}
+	}
+
+	/**
+	 * Checks that data to score has the attributes a model was trained on: the same
+	 * names and types in the same order, the same class attribute, and the same values
+	 * of each nominal attribute other than the class, in the same order, since the
+	 * model sees nominal values only by their index. The class values of the data are
+	 * not used.
+	 *
+	 * @param train
+	 *   Training header of the model
+	 * @param data
+	 *   Header of the data to score
+	 * @throws IllegalArgumentException
+	 *   If the data cannot be scored by the model
+	 */
+	public static void checkHeader(Instances train, Instances data){
+
+		if(train == null){
+			throw new IllegalArgumentException("Model has not been built");
+		}
+		if(train.numAttributes() != data.numAttributes()){
+			throw new IllegalArgumentException("Model was trained on " + train.numAttributes() + " attributes, data has " + data.numAttributes());
+		}
+		if(train.classIndex() != data.classIndex()){
+			throw new IllegalArgumentException("Model was trained with class attribute " + train.classIndex() + ", data has " + data.classIndex());
+		}
+
+		for(int a = 0; a < train.numAttributes(); ++a){
+			Attribute t = train.attribute(a);
+			Attribute d = data.attribute(a);
+
+			if(!t.name().equals(d.name()) || t.type() != d.type()){
+				throw new IllegalArgumentException("Attribute " + a + " is " + d.name() + " (" + Attribute.typeToString(d)
+					+ "), model was trained on " + t.name() + " (" + Attribute.typeToString(t) + ")");
+			}
+
+			if(a != train.classIndex() && t.isNominal()){
+				boolean same = t.numValues() == d.numValues();
+				for(int v = 0; same && v < t.numValues(); ++v){
+					same = t.value(v).equals(d.value(v));
+				}
+				if(!same){
+					throw new IllegalArgumentException("Attribute " + t.name() + " has values " + values(d) + ", model was trained on " + values(t));
+				}
+			}
+		}
+	}
+
+	static String values(Attribute att){
+		StringBuilder sb = new StringBuilder("{");
+		for(int v = 0; v < att.numValues(); ++v){
+			sb.append(v > 0 ? "," : "").append(att.value(v));
+		}
+		return sb.append('}').toString();
+	}
+
+	//Getters/setters
+	public void setChunkSize(int rows){
+		this.chunkSize = rows;
+	}
+
+	public int getChunkSize(){
+		return this.chunkSize;
+	}
+
+	public void setMaxChunksInFlight(int chunks){
+		this.maxChunksInFlight = chunks;
+	}
+
+	public int getMaxChunksInFlight(){
+		return this.maxChunksInFlight;
+	}
+
+	public ModelHolder getModels(){
+		return this.models;
+	}
+
+	/**
+	 * Scores a file with a serialized model.
+	 *
+	 * @param args
+	 *   args[0] is the serialized GraphClassifier, args[1] the data file to score (csv
+	 *   or arff), args[2] the file to write predictions to and the optional args[3]
+	 *   the number of scoring threads.
+	 */
+	public static void main(String args[]) throws Exception{
+
+		GraphClassifier model = (GraphClassifier) SerializationHelper.read(args[0]);
+
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		BatchScorer scorer = new BatchScorer(model, threads);
+
+		long start = System.currentTimeMillis();
+		long rows = scorer.score(new File(args[1]), new File(args[2]));
+		long millis = System.currentTimeMillis() - start;
+
+		System.out.println("Scored " + rows + " rows in " + millis + " ms");
+	}
+}
@@ -0,0 +1,212 @@
+package graph;
+import java.io.File;
+import java.io.Serializable;
+
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * Directory holding the state of a GraphClassifier build, so a build that is killed
+ * part way through can be resumed rather than started over.
+ *
+ * The directory holds the build's sampling seeds, each weak classifier node as soon as
+ * it has been trained and weighted, and the accuracy of every pair fit so far. Each
+ * file is written under a temporary name and then renamed, so a crash while writing
+ * leaves the previous version intact.
+ *
+ * The state records a fingerprint of the data and settings it was made with, and is
+ * only resumed by a build with the same fingerprint.
+ *
+ * @author mchristopher
+ *
+ */
+public class BuildCheckpoint {
+
+	/** Directory the checkpoint files are written to */
+	File dir;
+
+	/** State of the build being checkpointed */
+	State state;
+
+	/**
+	 * Opens the checkpoint in the given directory for a build, resuming its state if it
+	 * was written by a build of the same model on the same data. Otherwise the old files
+	 * are removed and a new state is started with the given seed.
+	 *
+	 * @param dir
+	 *   Directory to write checkpoints to, created if needed
+	 * @param fingerprint
+	 *   Description of the data and settings of the build, see fingerprint()
+	 * @param seed
+	 *   Seed to use if the build is not resumed
+	 * @throws Exception
+	 */
+	public BuildCheckpoint(File dir, String fingerprint, long seed) throws Exception{
+
+		this.dir = dir;
+
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IllegalArgumentException("Could not create checkpoint directory " + dir);
+		}
+
+		State saved = (State) this.read("state");
+
+		if(saved != null && saved.fingerprint.equals(fingerprint)){
+			this.state = saved;
+			System.out.println("Resuming build from " + dir);
+		}
+		else{
+			this.clear();
+
+			this.state = new State();
+			this.state.fingerprint = fingerprint;
+			this.state.seed = seed;
+			this.write("state", this.state);
+		}
+	}
+
+	/**
+	 * Seed used to draw the sample of each weak classifier.
+	 */
+	public long getSeed(){
+		return this.state.seed;
+	}
+
+	/**
+	 * Gets a node saved by an earlier run of the build.
+	 *
+	 * @param i
+	 *   Position of the node in the pool
+	 * @return
+	 *   The trained and weighted node, or null if it was not saved
+	 */
+	public ClassifierNode loadNode(int i){
+		return (ClassifierNode) this.read("node-" + i);
+	}
+
+	/**
+	 * Saves a trained and weighted node.
+	 */
+	public void saveNode(int i, ClassifierNode c) throws Exception{
+		this.write("node-" + i, c);
+	}
+
+	/**
+	 * Gets the pair accuracies saved by an earlier run of the build.
+	 *
+	 * @return
+	 *   The saved scores, or empty scores if none were saved
+	 */
+	public EdgeScoreCache loadEdgeScores(){
+		EdgeScoreCache scores = (EdgeScoreCache) this.read("edges");
+		return scores != null ? scores : new EdgeScoreCache();
+	}
+
+	/**
+	 * Saves the accuracy of every pair fit so far.
+	 */
+	public void saveEdgeScores(EdgeScoreCache scores) throws Exception{
+		this.write("edges", scores);
+	}
+
+	/**
+	 * Removes every checkpoint file, e.g. once the build has finished.
+	 */
+	public void clear(){
+		File[] files = dir.listFiles();
+		for(int i = 0; files != null && i < files.length; ++i){
+			if(files[i].getName().endsWith(".ckpt") || files[i].getName().endsWith(".tmp")){
+				files[i].delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes an object to dir/name.ckpt, replacing any earlier version only once it is
+	 * completely written.
+	 */
+	void write(String name, Object o) throws Exception{
+
+		File tmp = new File(dir, name + ".tmp");
+		File target = new File(dir, name + ".ckpt");
+
+		SerializationHelper.write(tmp.getPath(), o);
+
+		if(!tmp.renameTo(target)){
+			//Some platforms will not rename over an existing file
+			target.delete();
+			if(!tmp.renameTo(target)){
+				throw new IllegalStateException("Could not write checkpoint " + target);
+			}
+		}
+	}
+
+	/**
+	 * Reads dir/name.ckpt.
+	 *
+	 * @return
+	 *   The object, or null if the file is missing or cannot be read
+	 */
+	Object read(String name){
+
+		File f = new File(dir, name + ".ckpt");
+		if(!f.isFile()){
+			return null;
+		}
+
+		try{
+			return SerializationHelper.read(f.getPath());
+		}
+		catch(Exception e){
+			System.out.println("Ignoring unreadable checkpoint " + f + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Describes the data and model settings of a build. Builds with the same
+	 * fingerprint train the same nodes from the same seed, and fit their edges the
+	 * same way.
+	 *
+	 * @param model
+	 *   Model being built
+	 * @param data
+	 *   Training data
+	 * @return
+	 *   Fingerprint of the build
+	 */
+	public static String fingerprint(GraphClassifier model, Instances data){
+
+		//Hash of every value, so that a build on different data of the same shape is not resumed
+		long hash = 17;
+		for(int r = 0; r < data.numInstances(); ++r){
+			double[] values = data.get(r).toDoubleArray();
+			for(int a = 0; a < values.length; ++a){
+				hash = 31*hash + Double.doubleToLongBits(values[a]);
+			}
+		}
+
+		StringBuilder learners = new StringBuilder();
+		if(model.learners == null){
+			learners.append(model.learnerFor(0));
+		}
+		for(int i = 0; model.learners != null && i < model.learners.size(); ++i){
+			learners.append(i > 0 ? ";" : "").append(model.learners.get(i));
+		}
+
+		return model.getClass().getName() + "," + learners + "," + model.poolSize() + ","
+			+ (model.autoProportion ? "auto" : String.valueOf(model.getProportion())) + "," + model.seed + "," + model.subspaceSize + "," + model.outputPrecision + "," + model.warmStartEdges + "," + (model.raceEdges ? "race" + model.raceConfidence : "norace") + "," + data.relationName() + "," + data.numInstances() + "x"
+			+ data.numAttributes() + "," + data.classIndex() + "," + Long.toHexString(hash);
+	}
+
+	/**
+	 * Settings of a checkpointed build.
+	 */
+	static class State implements Serializable{
+
+		String fingerprint;
+
+		/** Seed the sample seed of each node is drawn from */
+		long seed;
+	}
+}
@@ -0,0 +1,244 @@
+package graph;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import weka.core.Utils;
+
+/**
+ * Runs independent tasks of very different lengths, such as training the weak
+ * classifiers of a mixed pool, on a fixed number of threads.
+ *
+ * Tasks are dealt out longest first, each to the thread with the least estimated
+ * work so far, so every thread starts on its longest task and the short ones fill
+ * in at the end. Each thread keeps its tasks in its own deque and takes them from
+ * the front. Estimates are never exact, so a thread that runs out of work steals
+ * from the back of the deque of the thread with the most estimated work left, and
+ * no thread sits idle while there are tasks waiting.
+ *
+ * @author mchristopher
+ *
+ */
+public class BuildScheduler {
+
+	/** Number of threads tasks are run on */
+	final int numThreads;
+
+	/** Tasks waiting to be run by each thread */
+	LinkedBlockingDeque<Task>[] queues;
+
+	/** Estimated work left in each queue, in the units of Task.estimate */
+	double[] pending;
+
+	/** Number of tasks run by a thread other than the one they were dealt to, in the last run */
+	int steals;
+
+	/** Wall clock time of the last run in milliseconds */
+	long millis;
+
+	/** Sum of the run times of every task of the last run */
+	long busyMillis;
+
+	/** Run time of the longest task of the last run */
+	long longestMillis;
+
+	volatile Exception error;
+
+	/**
+	 * @param numThreads
+	 *   Number of threads to run tasks on
+	 */
+	public BuildScheduler(int numThreads){
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Runs every task and waits for them to finish.
+	 *
+	 * @param tasks
+	 *   Tasks to run, each with its estimated cost set
+	 * @throws Exception
+	 *   The first exception thrown by a task, once every thread has stopped
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void run(List<? extends Task> tasks) throws Exception{
+
+		this.queues = new LinkedBlockingDeque[numThreads];
+		this.pending = new double[numThreads];
+		this.steals = 0;
+		this.busyMillis = 0;
+		this.longestMillis = 0;
+		this.error = null;
+
+		for(int t = 0; t < numThreads; ++t){
+			queues[t] = new LinkedBlockingDeque<Task>();
+		}
+
+		//Longest processing time first, each to the least loaded thread
+		Task[] sorted = tasks.toArray(new Task[tasks.size()]);
+		double[] cost = new double[sorted.length];
+		for(int k = 0; k < sorted.length; ++k){
+			cost[k] = -sorted[k].estimate;
+		}
+		int[] order = Utils.stableSort(cost);
+
+		for(int k = 0; k < order.length; ++k){
+			Task task = sorted[order[k]];
+
+			int least = 0;
+			for(int t = 1; t < numThreads; ++t){
+				if(pending[t] < pending[least]){
+					least = t;
+				}
+			}
+
+			task.owner = least;
+			pending[least] += task.estimate;
+			queues[least].addLast(task);
+		}
+
+		long start = System.currentTimeMillis();
+
+		Thread[] threads = new Thread[numThreads];
+		for(int t = 0; t < numThreads; ++t){
+			threads[t] = this.worker(t);
+			threads[t].start();
+		}
+		for(int t = 0; t < numThreads; ++t){
+			threads[t].join();
+		}
+
+		this.millis = System.currentTimeMillis() - start;
+
+		if(error != null){
+			throw error;
+		}
+	}
+
+	/**
+	 * Thread that runs the tasks dealt to it, then steals until there are none left.
+	 */
+	Thread worker(final int t){
+		return new Thread("build-worker-" + t){
+			public void run(){
+
+				Task task;
+				while(error == null && (task = next(t)) != null){
+
+					long start = System.currentTimeMillis();
+					try{
+						task.run();
+					}
+					catch(Exception e){
+						fail(e);
+					}
+					task.millis = System.currentTimeMillis() - start;
+
+					record(task, t);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Takes the next task of a thread, stealing one if its own queue is empty.
+	 *
+	 * @return
+	 *   The task, or null if every queue is empty
+	 */
+	Task next(int t){
+
+		Task task = queues[t].pollFirst();
+		if(task != null){
+			return task;
+		}
+
+		//Each attempt may race with another thief, so retry while any queue has work
+		while(true){
+			int victim = -1;
+			synchronized(this){
+				for(int v = 0; v < numThreads; ++v){
+					if(v != t && !queues[v].isEmpty() && (victim < 0 || pending[v] > pending[victim])){
+						victim = v;
+					}
+				}
+			}
+			if(victim < 0){
+				return null;
+			}
+
+			task = queues[victim].pollLast();
+			if(task != null){
+				return task;
+			}
+		}
+	}
+
+	synchronized void record(Task task, int t){
+		pending[task.owner] -= task.estimate;
+		busyMillis += task.millis;
+		longestMillis = Math.max(longestMillis, task.millis);
+		if(task.owner != t){
+			++steals;
+		}
+	}
+
+	synchronized void fail(Exception e){
+		if(error == null){
+			error = e;
+		}
+	}
+
+	/**
+	 * Shortest possible wall clock time of the last run given the task run times:
+	 * the longer of the longest task and the total work spread evenly over the threads.
+	 */
+	public synchronized long getLowerBoundMillis(){
+		return Math.max(longestMillis, (busyMillis + numThreads - 1)/numThreads);
+	}
+
+	public synchronized long getMillis(){
+		return this.millis;
+	}
+
+	public synchronized int getSteals(){
+		return this.steals;
+	}
+
+	public int getNumThreads(){
+		return this.numThreads;
+	}
+
+	public synchronized String toString(){
+		return "Ran tasks on " + numThreads + " threads in " + millis + " ms, lower bound "
+			+ getLowerBoundMillis() + " ms, " + steals + " tasks stolen";
+	}
+
+	/**
+	 * Unit of work with an estimated cost.
+	 */
+	public static abstract class Task{
+
+		/** Estimated cost, only compared with the estimates of other tasks */
+		double estimate;
+
+		/** Thread the task was dealt to */
+		int owner;
+
+		/** Time taken to run the task */
+		long millis;
+
+		/**
+		 * @param estimate
+		 *   Estimated cost of the task, e.g. its run time in milliseconds
+		 */
+		public Task(double estimate){
+			this.estimate = estimate;
+		}
+
+		public abstract void run() throws Exception;
+
+		public long getMillis(){
+			return this.millis;
+		}
+	}
+}
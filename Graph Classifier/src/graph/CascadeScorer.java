@@ -0,0 +1,334 @@
+package graph;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Scores data points with the path of a trained GraphClassifier, stopping as soon as
+ * the nodes not yet applied can no longer change the prediction.
+ *
+ * Each node output is a probability in [0, 1], so once some of the nodes have been
+ * applied the path sum is known to lie between the partial sum plus the negative
+ * weights still to come and the partial sum plus the positive ones. The logistic
+ * regression is monotone in the sum, so this bounds the probability of the first
+ * class. Nodes are applied in order of decreasing weight magnitude, so the bound
+ * narrows as fast as possible, and scoring stops once the bound lies on one side of
+ * one half and is no wider than twice the tolerance. The midpoint of the bound is
+ * returned, so the predicted class is always that of the full path and the returned
+ * probability is within the tolerance of the full path's. A tolerance of 0.5 stops
+ * as soon as the class is decided, and a tolerance of 0 only stops early when the
+ * remaining nodes have no weight.
+ *
+ * The number of data points scored, stopped early and the nodes applied are counted,
+ * see getExitRate() and getMeanNodesEvaluated().
+ *
+ * @author mchristopher
+ *
+ */
+public class CascadeScorer {
+
+	/** Largest distance allowed between the returned and the full path probability */
+	final double tolerance;
+
+	/** Distinct path nodes, in the order they are applied */
+	final ClassifierNode[] nodes;
+
+	/** Position in the path's node list of each node in nodes, see getNodes() */
+	final int[] order;
+
+	/** Total weight of each node in nodes, over every time it appears on the path */
+	final double[] weights;
+
+	/** Sum of the negative weights of nodes k onwards, for each k */
+	final double[] remainingLow;
+
+	/** Sum of the positive weights of nodes k onwards, for each k */
+	final double[] remainingHigh;
+
+	/** Logistic regression intercept */
+	final double intercept;
+
+	/** Logistic regression coefficient of the path sum */
+	final double slope;
+
+	/** Number of data points scored */
+	final AtomicLong scored = new AtomicLong();
+
+	/** Number of data points scored without applying every node */
+	final AtomicLong exits = new AtomicLong();
+
+	/** Number of node outputs computed */
+	final AtomicLong evaluated = new AtomicLong();
+
+	/**
+	 * Compiles the path of a trained model for cascaded scoring. Later changes to the
+	 * model are not seen by the scorer.
+	 *
+	 * @param path
+	 *   Path of a trained GraphClassifier
+	 * @param tolerance
+	 *   Largest distance allowed between the returned probabilities and those of the
+	 *   full path, at most 0.5
+	 */
+	public CascadeScorer(PathClassifier path, double tolerance){
+
+		if(tolerance < 0.0 || tolerance > 0.5){
+			throw new IllegalArgumentException("Tolerance must be between 0 and 0.5: " + tolerance);
+		}
+		this.tolerance = tolerance;
+
+		//A path may pass through a node more than once, its output is only needed once
+		List<ClassifierNode> pathNodes = path.getNodes();
+		ClassifierNode[] distinct = new ClassifierNode[pathNodes.size()];
+		int[] first = new int[pathNodes.size()];
+		double[] total = new double[pathNodes.size()];
+		int n = 0;
+
+		for(int i = 0; i < pathNodes.size(); ++i){
+			ClassifierNode c = pathNodes.get(i);
+
+			int k = 0;
+			while(k < n && !distinct[k].equals(c)){
+				++k;
+			}
+			if(k == n){
+				distinct[n] = c;
+				first[n] = i;
+				++n;
+			}
+			total[k] += c.getWeight();
+		}
+
+		//Sort by decreasing weight magnitude
+		double[] magnitude = new double[n];
+		for(int k = 0; k < n; ++k){
+			magnitude[k] = -Math.abs(total[k]);
+		}
+		int[] sorted = Utils.stableSort(magnitude);
+
+		this.nodes = new ClassifierNode[n];
+		this.order = new int[n];
+		this.weights = new double[n];
+		for(int k = 0; k < n; ++k){
+			nodes[k] = distinct[sorted[k]];
+			order[k] = first[sorted[k]];
+			weights[k] = total[sorted[k]];
+		}
+
+		this.remainingLow = new double[n + 1];
+		this.remainingHigh = new double[n + 1];
+		for(int k = n - 1; k >= 0; --k){
+			remainingLow[k] = remainingLow[k + 1] + Math.min(weights[k], 0.0);
+			remainingHigh[k] = remainingHigh[k + 1] + Math.max(weights[k], 0.0);
+		}
+
+		double[] coef = path.getLogisticCoefficients();
+		this.intercept = coef[0];
+		this.slope = coef[1];
+	}
+
+	/**
+	 * Gets probabilities of data point belonging to each class, applying the path's
+	 * own nodes.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class probabilities
+	 * @return
+	 *   Array of class probability values, in order of class values provided in training data
+	 * @throws Exception
+	 */
+	public double[] distributionForInstance(Instance datum) throws Exception{
+
+		double sum = 0.0;
+		int k = 0;
+
+		for(; k < nodes.length; ++k){
+			if(this.decided(sum, k)){
+				break;
+			}
+			sum += weights[k]*nodes[k].distributionForInstance(datum)[0];
+		}
+
+		return this.finish(sum, k);
+	}
+
+	/**
+	 * Gets probabilities of data point belonging to each class, applying a copy of the
+	 * path's nodes, as made by ConcurrentScorer for each thread.
+	 *
+	 * @param pathNodes
+	 *   Copy of the path's nodes, in the order of PathClassifier.getNodes()
+	 * @param datum
+	 *   Data point for which to predict class probabilities
+	 * @return
+	 *   Array of class probability values, in order of class values provided in training data
+	 * @throws Exception
+	 */
+	public double[] distributionForInstance(ClassifierNode[] pathNodes, Instance datum) throws Exception{
+
+		double sum = 0.0;
+		int k = 0;
+
+		for(; k < nodes.length; ++k){
+			if(this.decided(sum, k)){
+				break;
+			}
+			sum += weights[k]*pathNodes[order[k]].distributionForInstance(datum)[0];
+		}
+
+		return this.finish(sum, k);
+	}
+
+	/**
+	 * Scores a data point as distributionForInstance(pathNodes, datum) does, recording
+	 * the time of each node applied. A node that appears on the path more than once is
+	 * recorded at its first position.
+	 *
+	 * @param pathNodes
+	 *   Copy of the path's nodes, in the order of PathClassifier.getNodes()
+	 * @param datum
+	 *   Data point for which to predict class probabilities
+	 * @param nodeTimes
+	 *   Histogram of each path position to record node times into
+	 * @param spent
+	 *   Incremented by the time spent in nodes, then in the logistic regression
+	 * @return
+	 *   Array of class probability values, in order of class values provided in training data
+	 * @throws Exception
+	 */
+	public double[] distributionForInstance(ClassifierNode[] pathNodes, Instance datum, LatencyHistogram[] nodeTimes, long[] spent) throws Exception{
+
+		double sum = 0.0;
+		int k = 0;
+
+		for(; k < nodes.length; ++k){
+			if(this.decided(sum, k)){
+				break;
+			}
+
+			long t = System.nanoTime();
+			double out = pathNodes[order[k]].distributionForInstance(datum)[0];
+			t = System.nanoTime() - t;
+
+			nodeTimes[order[k]].record(t);
+			spent[0] += t;
+			sum += weights[k]*out;
+		}
+
+		long t = System.nanoTime();
+		double[] dist = this.finish(sum, k);
+		spent[1] += System.nanoTime() - t;
+
+		return dist;
+	}
+
+	/**
+	 * Determines whether the prediction is settled once the first k nodes have been
+	 * applied.
+	 */
+	boolean decided(double sum, int k){
+
+		double[] bounds = this.bounds(sum, k);
+
+		//Both ends of the bound must give the same class, with ties going to the first
+		if((bounds[0] >= 0.0) != (bounds[1] >= 0.0)){
+			return false;
+		}
+
+		return (logistic(bounds[1]) - logistic(bounds[0]))/2.0 <= tolerance;
+	}
+
+	/**
+	 * Gets the range {low, high} of the logistic regression's linear term over every
+	 * output the nodes from k onwards could give.
+	 */
+	double[] bounds(double sum, int k){
+
+		double a = intercept + slope*(sum + remainingLow[k]);
+		double b = intercept + slope*(sum + remainingHigh[k]);
+
+		return new double[]{Math.min(a, b), Math.max(a, b)};
+	}
+
+	/**
+	 * Records a data point scored with the first k nodes and gets its probabilities.
+	 */
+	double[] finish(double sum, int k){
+
+		scored.incrementAndGet();
+		evaluated.addAndGet(k);
+		if(k < nodes.length){
+			exits.incrementAndGet();
+		}
+
+		double[] bounds = this.bounds(sum, k);
+		double p = (logistic(bounds[0]) + logistic(bounds[1]))/2.0;
+
+		return new double[]{p, 1.0 - p};
+	}
+
+	static double logistic(double z){
+		return 1.0/(1.0 + Math.exp(-z));
+	}
+
+	/**
+	 * Classifies a single data point with the path's own nodes.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class
+	 * @return
+	 *   Index of predicted class value
+	 * @throws Exception
+	 */
+	public double classifyInstance(Instance datum) throws Exception{
+		return Utils.maxIndex(this.distributionForInstance(datum));
+	}
+
+	/**
+	 * Fraction of the data points scored so far that did not need every node.
+	 */
+	public double getExitRate(){
+		long n = scored.get();
+		return n > 0 ? exits.get()/(double) n : 0.0;
+	}
+
+	/**
+	 * Mean number of nodes applied per data point scored so far.
+	 */
+	public double getMeanNodesEvaluated(){
+		long n = scored.get();
+		return n > 0 ? evaluated.get()/(double) n : 0.0;
+	}
+
+	public long getScored(){
+		return scored.get();
+	}
+
+	public long getExits(){
+		return exits.get();
+	}
+
+	/**
+	 * Number of distinct nodes on the path, the most applied to any data point.
+	 */
+	public int numNodes(){
+		return nodes.length;
+	}
+
+	/**
+	 * Restarts the exit counts.
+	 */
+	public void resetStats(){
+		scored.set(0);
+		exits.set(0);
+		evaluated.set(0);
+	}
+
+	public String toString(){
+		return "Cascade (tolerance " + tolerance + "): " + getExits() + " of " + getScored() + " exited early ("
+			+ Utils.doubleToString(100.0*getExitRate(), 2) + "%), " + Utils.doubleToString(getMeanNodesEvaluated(), 2)
+			+ " of " + numNodes() + " nodes applied on average";
+	}
+}
@@ -2,11 +2,9 @@ package graph;
 import java.io.Serializable;
 
 import weka.classifiers.Classifier;
-import weka.classifiers.evaluation.EvaluationUtils;
-import weka.classifiers.evaluation.Prediction;
-import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Utils;
 
 /**
  * Creates a graph node wrapper around a weka Classifier.
@@ -24,6 +22,12 @@ public class ClassifierNode implements Serializable{
 	/** Weight that should be associated with this node */
 	double weight;
 	
+	/** Attributes of the full data the classifier was trained on, null if it used all of them */
+	int[] attributes;
+	
+	/** Header of the projected data the classifier was trained on, null if it used all attributes */
+	Instances projection;
+	
 	/**
 	 * Creates a node with the given id.
 	 * 
@@ -63,7 +67,7 @@ public class ClassifierNode implements Serializable{
 	 * @throws Exception
 	 */
 	public double[] distributionForInstance(Instance datum) throws Exception{
-		return this.classifier.distributionForInstance(datum);
+		return this.classifier.distributionForInstance(this.project(datum));
 	}
 	
 	/**
@@ -76,7 +80,26 @@ public class ClassifierNode implements Serializable{
 	 * @throws Exception
 	 */
 	public double classifyInstance(Instance datum) throws Exception{
-		return this.classifier.classifyInstance(datum);
+		return this.classifier.classifyInstance(this.project(datum));
+	}
+	
+	/**
+	 * Restricts a data point to the attributes this node was trained on.
+	 * 
+	 * @param datum
+	 *   Data point with all attributes of the training data
+	 * @return
+	 *   View of the data point the classifier can be applied to
+	 */
+	protected Instance project(Instance datum){
+		
+		if(this.attributes == null){
+			return datum;
+		}
+		
+		Instance view = new ProjectedInstance(datum, this.attributes);
+		view.setDataset(this.projection);
+		return view;
 	}
 	
 	/**
@@ -94,16 +117,13 @@ public class ClassifierNode implements Serializable{
 	public boolean evaluateOnData(Instances data){
 		
 		boolean result = true;
-		EvaluationUtils eval = new EvaluationUtils();
 		
 		try {
 			double right = 0, total = 0;
 			
-			FastVector<Prediction> results = (FastVector<Prediction>) eval.getTestPredictions(classifier, data);
-			
-			for(int i = 0; i < results.size(); ++i){
-				Prediction p = results.get(i);
-				if(p.predicted() == p.actual()){
+			//Applied through this node, so projected nodes see their own attributes
+			for(int i = 0; i < data.numInstances(); ++i){
+				if(Utils.maxIndex(this.distributionForInstance(data.get(i))) == data.get(i).classValue()){
 					right = right + 1;
 				}
 				total = total + 1;
@@ -152,6 +172,28 @@ public class ClassifierNode implements Serializable{
 		return id.hashCode();
 	}
 	
+	/**
+	 * Creates a node with the given id that shares this node's trained classifier and
+	 * attributes but has its own weight, e.g. for a node weighted on other data.
+	 * 
+	 * @param id
+	 *   Identifier to assign to the new node
+	 * @param weight
+	 *   Weight of the new node
+	 * @return
+	 *   The new node
+	 */
+	public ClassifierNode reweighted(String id, double weight){
+		
+		ClassifierNode c = new ClassifierNode(id);
+		c.classifier = this.classifier;
+		c.attributes = this.attributes;
+		c.projection = this.projection;
+		c.weight = weight;
+		
+		return c;
+	}
+	
 	//Basic getters/setters
 	
 	public void setClassifier(Classifier c){
@@ -162,6 +204,23 @@ public class ClassifierNode implements Serializable{
 		return this.classifier;
 	}
 	
+	/**
+	 * Sets the attributes this node's classifier is trained on and applied to.
+	 * 
+	 * @param attributes
+	 *   Indices of the attributes in the full data, or null for all attributes
+	 * @param header
+	 *   Header of the projected data, see ProjectedInstance.header()
+	 */
+	public void setProjection(int[] attributes, Instances header){
+		this.attributes = attributes;
+		this.projection = header;
+	}
+	
+	public int[] getProjection(){
+		return this.attributes;
+	}
+	
 	public void setID(String id){
 		this.id = id;
 	}
@@ -0,0 +1,262 @@
+package graph;
+import java.util.List;
+
+import weka.core.Instance;
+import weka.core.SerializedObject;
+import weka.core.Utils;
+
+/**
+ * Scores data points with the path of a trained GraphClassifier from many threads
+ * at once, without locking.
+ *
+ * Weka classifiers are not generally safe to share between threads, since many keep
+ * scratch state (filters, buffers) that is updated on every prediction. Each thread
+ * therefore gets its own copy of the path's nodes, deserialized the first time that
+ * thread scores a data point. The logistic regression over the path sum is compiled
+ * to its two coefficients, which are never modified and so are shared by all threads.
+ *
+ * Given an InferenceTelemetry, the time of each node, of the logistic regression and
+ * of the whole call is recorded for every data point it samples.
+ *
+ * @author mchristopher
+ *
+ */
+public class ConcurrentScorer {
+
+	/** Serialized path nodes that each thread's copy is made from */
+	final SerializedObject snapshot;
+
+	/** Weight of each node on the path */
+	final double[] weights;
+
+	/** Logistic regression intercept */
+	final double intercept;
+
+	/** Logistic regression coefficient of the path sum */
+	final double slope;
+
+	/** Each thread's own copy of the path nodes */
+	final ThreadLocal<ClassifierNode[]> context;
+
+	/** Early exit scoring of single data points, null to apply every node */
+	final CascadeScorer cascade;
+
+	/** Where scoring times are recorded, null to not record them */
+	final InferenceTelemetry telemetry;
+
+	/** Time of each path position, from telemetry.bind() */
+	final LatencyHistogram[] nodeTimes;
+
+	/**
+	 * Compiles the path of a trained model for concurrent scoring. Later changes to
+	 * the model are not seen by the scorer.
+	 *
+	 * @param path
+	 *   Path of a trained GraphClassifier
+	 * @throws Exception
+	 *   If the path nodes cannot be serialized
+	 */
+	public ConcurrentScorer(PathClassifier path) throws Exception{
+		this(path, null);
+	}
+
+	/**
+	 * Compiles the path of a trained model for concurrent scoring, scoring single data
+	 * points with early exit. Later changes to the model are not seen by the scorer.
+	 *
+	 * @param path
+	 *   Path of a trained GraphClassifier
+	 * @param cascade
+	 *   Early exit scorer compiled from the same path, or null to apply every node
+	 * @throws Exception
+	 *   If the path nodes cannot be serialized
+	 */
+	public ConcurrentScorer(PathClassifier path, CascadeScorer cascade) throws Exception{
+		this(path, cascade, null);
+	}
+
+	/**
+	 * Compiles the path of a trained model for concurrent scoring, recording how long
+	 * scoring takes. Later changes to the model are not seen by the scorer.
+	 *
+	 * @param path
+	 *   Path of a trained GraphClassifier
+	 * @param cascade
+	 *   Early exit scorer compiled from the same path, or null to apply every node
+	 * @param telemetry
+	 *   Where to record scoring times, or null to not record them
+	 * @throws Exception
+	 *   If the path nodes cannot be serialized
+	 */
+	public ConcurrentScorer(PathClassifier path, CascadeScorer cascade, InferenceTelemetry telemetry) throws Exception{
+
+		this.cascade = cascade;
+		this.telemetry = telemetry;
+
+		List<ClassifierNode> nodes = path.getNodes();
+		this.nodeTimes = telemetry != null ? telemetry.bind(nodes) : null;
+
+		this.weights = new double[nodes.size()];
+		for(int i = 0; i < weights.length; ++i){
+			weights[i] = nodes.get(i).getWeight();
+		}
+
+		double[] coef = path.getLogisticCoefficients();
+		this.intercept = coef[0];
+		this.slope = coef[1];
+
+		this.snapshot = new SerializedObject(nodes.toArray(new ClassifierNode[nodes.size()]));
+
+		this.context = new ThreadLocal<ClassifierNode[]>(){
+			protected ClassifierNode[] initialValue(){
+				try{
+					return (ClassifierNode[]) snapshot.getObject();
+				}
+				catch(Exception e){
+					throw new IllegalStateException("Could not copy path nodes", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Gets probabilities of data point belonging to each class, using this thread's
+	 * copy of the path.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class probabilities
+	 * @return
+	 *   Array of class probability values, in order of class values provided in training data
+	 * @throws Exception
+	 */
+	public double[] distributionForInstance(Instance datum) throws Exception{
+
+		if(telemetry != null && telemetry.startRow()){
+			return this.timedDistributionForInstance(datum);
+		}
+
+		ClassifierNode[] nodes = context.get();
+
+		if(cascade != null){
+			return cascade.distributionForInstance(nodes, datum);
+		}
+
+		double sum = 0.0;
+		for(int i = 0; i < nodes.length; ++i){
+			sum += weights[i]*nodes[i].distributionForInstance(datum)[0];
+		}
+
+		double p = 1.0/(1.0 + Math.exp(-(intercept + slope*sum)));
+
+		return new double[]{p, 1.0 - p};
+	}
+
+	/**
+	 * Scores a data point as distributionForInstance() does, recording the time of
+	 * each step.
+	 */
+	double[] timedDistributionForInstance(Instance datum) throws Exception{
+
+		long start = System.nanoTime();
+		ClassifierNode[] nodes = context.get();
+
+		if(cascade != null){
+			long[] spent = new long[2];
+			double[] dist = cascade.distributionForInstance(nodes, datum, nodeTimes, spent);
+			telemetry.recordCall(1, System.nanoTime() - start, spent[0], spent[1]);
+			return dist;
+		}
+
+		double sum = 0.0;
+		long nodeNanos = 0;
+		for(int i = 0; i < nodes.length; ++i){
+			long t = System.nanoTime();
+			double out = nodes[i].distributionForInstance(datum)[0];
+			t = System.nanoTime() - t;
+
+			nodeTimes[i].record(t);
+			nodeNanos += t;
+			sum += weights[i]*out;
+		}
+
+		long t = System.nanoTime();
+		double p = 1.0/(1.0 + Math.exp(-(intercept + slope*sum)));
+		long logisticNanos = System.nanoTime() - t;
+
+		double[] dist = new double[]{p, 1.0 - p};
+		telemetry.recordCall(1, System.nanoTime() - start, nodeNanos, logisticNanos);
+
+		return dist;
+	}
+
+	/**
+	 * Gets probabilities of a block of data points belonging to each class, using this
+	 * thread's copy of the path. The weighted path sums and the logistic regression are
+	 * evaluated over the whole block with the column kernels in PathKernels. With
+	 * telemetry, every block is timed and each of its rows is recorded as taking the
+	 * mean time per row.
+	 *
+	 * @param rows
+	 *   Data points for which to predict class probabilities
+	 * @param n
+	 *   Number of data points in rows to score
+	 * @return
+	 *   Class probabilities of each data point, as from distributionForInstance()
+	 * @throws Exception
+	 */
+	public double[][] distributionsForInstances(Instance[] rows, int n) throws Exception{
+
+		boolean timed = telemetry != null && n > 0;
+		if(timed){
+			telemetry.startRows(n);
+		}
+
+		long start = System.nanoTime();
+		ClassifierNode[] nodes = context.get();
+
+		double[] column = new double[n];
+		double[] sums = new double[n];
+		long nodeNanos = 0;
+
+		for(int i = 0; i < nodes.length; ++i){
+			long t = System.nanoTime();
+			for(int r = 0; r < n; ++r){
+				column[r] = nodes[i].distributionForInstance(rows[r])[0];
+			}
+			if(timed){
+				t = System.nanoTime() - t;
+				nodeTimes[i].record(t/n, n);
+				nodeNanos += t;
+			}
+			PathKernels.addScaled(weights[i], column, sums, n);
+		}
+
+		long t = System.nanoTime();
+		PathKernels.logistic(intercept, slope, sums, sums, n);
+		long logisticNanos = System.nanoTime() - t;
+
+		double[][] dists = new double[n][];
+		for(int r = 0; r < n; ++r){
+			dists[r] = new double[]{sums[r], 1.0 - sums[r]};
+		}
+
+		if(timed){
+			telemetry.recordCall(n, (System.nanoTime() - start)/n, nodeNanos/n, logisticNanos/n);
+		}
+
+		return dists;
+	}
+
+	/**
+	 * Classifies a single data point, using this thread's copy of the path.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class
+	 * @return
+	 *   Index of predicted class value
+	 * @throws Exception
+	 */
+	public double classifyInstance(Instance datum) throws Exception{
+		return Utils.maxIndex(this.distributionForInstance(datum));
+	}
+}
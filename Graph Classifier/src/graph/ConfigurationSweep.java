@@ -0,0 +1,284 @@
+package graph;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Evaluates a grid of GraphClassifier and LayeredGraphClassifier configurations
+ * while sharing as much work between them as possible.
+ *
+ * A single pool of weak classifiers is trained for each sample proportion p, large
+ * enough for the biggest configuration. Every graph size and layer shape is built
+ * from a prefix of that pool. Pair accuracies do not depend on b or on the graph
+ * shape, so each pair is fit once per pool and reused by every configuration that
+ * contains it.
+ *
+ * @author mchristopher
+ *
+ */
+public class ConfigurationSweep {
+
+	/** Sample proportions to try, a new pool is trained for each */
+	double[] proportions = {0.10};
+
+	/** Sink weights to try for complete graphs */
+	double[] bs = {0.00};
+
+	/** Number of classifiers in each complete graph to try */
+	int[] graphSizes = {10};
+
+	/** {numLayers, numClassifiersPerLayer} of each layered graph to try */
+	int[][] layerShapes = new int[0][];
+
+	/** Fully qualified class name of the weak classifiers */
+	String classifierName;
+
+	/** Arguments used to create the weak classifiers */
+	String[] classArgs;
+
+	/** Bits used to cache node outputs, see GraphClassifier.setOutputPrecision() */
+	int outputPrecision = NodeOutputCache.PRECISION_NONE;
+
+	/**
+	 * Creates a sweep over classifiers of the given type.
+	 *
+	 * @param classifier
+	 *   Fully qualified name of classifier type to use for weak classifiers
+	 * @param args
+	 *   Arguments used to create each weak classifier
+	 */
+	public ConfigurationSweep(String classifier, String[] args){
+		this.classifierName = classifier;
+		this.classArgs = args;
+	}
+
+	/**
+	 * Builds every configuration on the training data and measures its accuracy on
+	 * the test data.
+	 *
+	 * @param train
+	 *   Data used to train the pools and build each configuration
+	 * @param test
+	 *   Data used to measure the accuracy of each configuration
+	 * @return
+	 *   One result per configuration
+	 * @throws Exception
+	 */
+	public List<SweepResult> run(Instances train, Instances test) throws Exception{
+
+		Vector<SweepResult> results = new Vector<SweepResult>();
+
+		int poolSize = 0;
+		for(int i = 0; i < graphSizes.length; ++i){
+			poolSize = Math.max(poolSize, graphSizes[i]);
+		}
+		for(int i = 0; i < layerShapes.length; ++i){
+			poolSize = Math.max(poolSize, layerShapes[i][0]*layerShapes[i][1]);
+		}
+
+		for(int pi = 0; pi < proportions.length; ++pi){
+
+			double p = proportions[pi];
+
+			long start = System.currentTimeMillis();
+
+			GraphClassifier trainer = new GraphClassifier(poolSize, classifierName, classArgs);
+			trainer.setProportion(p);
+			List<ClassifierNode> pool = trainer.trainNodes(train);
+
+			NodeOutputCache outputs = null;
+			if(outputPrecision != NodeOutputCache.PRECISION_NONE){
+				outputs = new NodeOutputCache(pool, train, outputPrecision);
+			}
+
+			long poolMillis = System.currentTimeMillis() - start;
+
+			EdgeScoreCache scores = new EdgeScoreCache();
+
+			for(int si = 0; si < graphSizes.length; ++si){
+				for(int bi = 0; bi < bs.length; ++bi){
+
+					GraphClassifier gc = new GraphClassifier(graphSizes[si], classifierName, classArgs);
+					gc.setProportion(p);
+					gc.setB(bs[bi]);
+
+					results.add(this.runConfiguration(gc, pool, outputs, scores, train, test, poolMillis));
+				}
+			}
+
+			for(int li = 0; li < layerShapes.length; ++li){
+
+				LayeredGraphClassifier lc = new LayeredGraphClassifier(layerShapes[li][0], layerShapes[li][1], classifierName, classArgs);
+				lc.setProportion(p);
+
+				results.add(this.runConfiguration(lc, pool, outputs, scores, train, test, poolMillis));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Builds a single configuration from the shared pool and evaluates it.
+	 */
+	protected SweepResult runConfiguration(GraphClassifier gc, List<ClassifierNode> pool, NodeOutputCache outputs,
+			EdgeScoreCache scores, Instances train, Instances test, long poolMillis) throws Exception{
+
+		gc.setOutputPrecision(outputPrecision);
+		gc.setNodeOutputs(outputs);
+		gc.setEdgeScores(scores);
+
+		int fitBefore = scores.size();
+		int hitsBefore = scores.getHits();
+
+		long start = System.currentTimeMillis();
+		gc.buildFromNodes(train, pool.subList(0, gc.poolSize()));
+		long buildMillis = System.currentTimeMillis() - start;
+
+		SweepResult r = new SweepResult();
+		r.p = gc.getProportion();
+		r.accuracy = accuracy(gc, test);
+		r.poolMillis = poolMillis;
+		r.buildMillis = buildMillis;
+		r.edgesFit = scores.size() - fitBefore;
+		r.edgesReused = scores.getHits() - hitsBefore;
+
+		if(gc instanceof LayeredGraphClassifier){
+			LayeredGraphClassifier lc = (LayeredGraphClassifier) gc;
+			r.type = "layered";
+			r.b = Double.NaN;
+			r.numLayers = lc.getNumLayers();
+			r.width = lc.getNumClassifiersPerLayer();
+		}
+		else{
+			r.type = "graph";
+			r.b = gc.getB();
+			r.numLayers = 1;
+			r.width = gc.poolSize();
+		}
+
+		System.out.println(r);
+
+		return r;
+	}
+
+	/**
+	 * Proportion of the data classified correctly.
+	 */
+	public static double accuracy(Classifier c, Instances data) throws Exception{
+
+		double right = 0;
+
+		for(int i = 0; i < data.numInstances(); ++i){
+			if(Utils.maxIndex(c.distributionForInstance(data.get(i))) == data.get(i).classValue()){
+				right = right + 1;
+			}
+		}
+
+		return right/data.numInstances();
+	}
+
+	/**
+	 * Prints the results as comma separated values, with a header line.
+	 */
+	public static void printTable(List<SweepResult> results, PrintStream out){
+		out.println(SweepResult.HEADER);
+		for(int i = 0; i < results.size(); ++i){
+			out.println(results.get(i));
+		}
+	}
+
+	//Getters/setters
+	public void setProportions(double[] proportions){
+		this.proportions = proportions;
+	}
+
+	public void setBs(double[] bs){
+		this.bs = bs;
+	}
+
+	public void setGraphSizes(int[] sizes){
+		this.graphSizes = sizes;
+	}
+
+	public void setLayerShapes(int[][] shapes){
+		this.layerShapes = shapes;
+	}
+
+	public void setOutputPrecision(int bits){
+		this.outputPrecision = bits;
+	}
+
+	/**
+	 * Result of one configuration in a sweep.
+	 */
+	public static class SweepResult{
+
+		public static final String HEADER = "type,p,b,numLayers,width,accuracy,poolMillis,buildMillis,edgesFit,edgesReused";
+
+		/** "graph" or "layered" */
+		public String type;
+
+		public double p;
+
+		/** Sink weight, NaN for layered graphs which do not use it */
+		public double b;
+
+		public int numLayers;
+
+		/** Classifiers per layer, or total classifiers for complete graphs */
+		public int width;
+
+		/** Accuracy on the test data */
+		public double accuracy;
+
+		/** Time to train the shared pool, paid once per p */
+		public long poolMillis;
+
+		/** Time to build this configuration from the pool */
+		public long buildMillis;
+
+		/** Pairs fit for this configuration */
+		public int edgesFit;
+
+		/** Pairs reused from earlier configurations */
+		public int edgesReused;
+
+		public String toString(){
+			return type + "," + p + "," + b + "," + numLayers + "," + width + "," + accuracy + ","
+				+ poolMillis + "," + buildMillis + "," + edgesFit + "," + edgesReused;
+		}
+	}
+
+	/**
+	 * Testing method.
+	 *
+	 * @param args
+	 *   args[0] should be path to data file (csv or arff) on which to test.
+	 */
+	public static void main(String args[]) throws Exception{
+
+		Instances data = new DataSource(args[0]).getDataSet();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(1));
+
+		int numTrain = (int) Math.round(data.numInstances()*2.0/3.0);
+		Instances train = new Instances(data, 0, numTrain);
+		Instances test = new Instances(data, numTrain, data.numInstances() - numTrain);
+
+		ConfigurationSweep sweep = new ConfigurationSweep("weka.classifiers.functions.Logistic", null);
+		sweep.setProportions(new double[]{0.05, 0.10, 0.25});
+		sweep.setBs(new double[]{0.00, 0.01, 0.05});
+		sweep.setGraphSizes(new int[]{6, 12});
+		sweep.setLayerShapes(new int[][]{{2, 6}, {3, 4}, {4, 3}});
+		sweep.setOutputPrecision(NodeOutputCache.PRECISION_16);
+
+		ConfigurationSweep.printTable(sweep.run(train, test), System.out);
+	}
+}
@@ -0,0 +1,230 @@
+package graph;
+import java.util.Random;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Scores edges by racing them against the best edge found so far out of the same
+ * node, so edges that cannot win are dropped after scoring only part of the data.
+ *
+ * An edge is fit and scored on a random batch of firstBatch rows, then on twice as
+ * many, and so on up to the whole training set, its logistic fit converged on each
+ * batch, warm started from the previous one. After each batch, Hoeffding's
+ * inequality bounds how much better the edge could score on all rows: its accuracy
+ * is below the batch accuracy plus sqrt(ln(batches/confidence)/(2m)) after m rows,
+ * with probability at least 1 - confidence over every batch of the race. Once that
+ * bound is below the accuracy to beat the race is abandoned, and the edge is given
+ * the accuracy it had on the rows scored so far, see wasAbandoned(). Edges that are
+ * not ruled out are scored on every row. By default they are then fit with weka's
+ * Logistic, so their accuracy is exactly that of PathClassifier.scorePair() without a
+ * LogisticFit. LogisticFit is only used for the batches, to rule edges out. If
+ * setWekaLogistic(false) is called, the last batch is fit with LogisticFit too, and
+ * the accuracy is that of scorePair() with the same LogisticFit.
+ *
+ * The bound holds for a fixed regression scored on random rows, while each batch is
+ * scored with the regression fit to it. In-sample accuracy usually overstates the
+ * accuracy of the same model on other rows, which errs towards keeping the edge,
+ * but a batch fit may also score below the fit to every row, so confidence is an
+ * approximate rather than a guaranteed error rate.
+ *
+ * @author mchristopher
+ *
+ */
+public class EdgeRace {
+
+	/** Training data the edges are scored on */
+	final Instances data;
+
+	/** Cached outputs of the nodes on data, null to apply the node classifiers */
+	final NodeOutputCache outputs;
+
+	/** Rows of data in the random order batches are taken in */
+	final int[] order;
+
+	/** Class value of each row, in the order of order */
+	final double[] classes;
+
+	/** Whether edges not ruled out are fit to every row with weka's Logistic rather than LogisticFit */
+	boolean wekaLogistic = true;
+
+	/** Probability of abandoning an edge that would have beaten the incumbent */
+	double confidence = 0.05;
+
+	/** Number of rows in the first batch */
+	int firstBatch = 64;
+
+	/** Number of edges raced */
+	int races;
+
+	/** Number of edges abandoned before scoring every row */
+	int abandoned;
+
+	/** Rows scored over every race */
+	long rowsScored;
+
+	/** Whether the last edge scored was abandoned */
+	boolean lastAbandoned;
+
+	/**
+	 * @param data
+	 *   Training data the edges are scored on
+	 * @param outputs
+	 *   Cached outputs of the nodes on data, or null to apply the node classifiers
+	 * @param rand
+	 *   Source of the row order
+	 */
+	public EdgeRace(Instances data, NodeOutputCache outputs, Random rand){
+
+		this.data = data;
+		this.outputs = outputs != null && outputs.hasProbabilities() ? outputs : null;
+
+		int n = data.numInstances();
+		this.order = new int[n];
+		for(int r = 0; r < n; ++r){
+			order[r] = r;
+		}
+		for(int r = n - 1; r > 0; --r){
+			int s = rand.nextInt(r + 1);
+			int t = order[r];
+			order[r] = order[s];
+			order[s] = t;
+		}
+
+		this.classes = new double[n];
+		for(int r = 0; r < n; ++r){
+			classes[r] = data.get(order[r]).classValue();
+		}
+	}
+
+	/**
+	 * Scores the two node path ci -> cj, abandoning it once it is ruled out.
+	 *
+	 * @param ci
+	 *   First node on the path
+	 * @param cj
+	 *   Second node on the path
+	 * @param fit
+	 *   Fit to start from, left holding the coefficients of the last batch fit with it
+	 * @param incumbent
+	 *   Accuracy the edge must be able to beat, that of the best edge so far out of the
+	 *   same node, or a negative value to score every row
+	 * @return
+	 *   Accuracy of the path on every row, or on the rows scored if abandoned
+	 * @throws Exception
+	 */
+	public double score(ClassifierNode ci, ClassifierNode cj, LogisticFit fit, double incumbent) throws Exception{
+
+		int n = order.length;
+		double[] sums = new double[n];
+		int batches = 1;
+		for(int size = Math.min(firstBatch, n); size < n; size *= 2){
+			++batches;
+		}
+
+		int i = outputs != null ? outputs.indexOf(ci) : -1;
+		int j = outputs != null ? outputs.indexOf(cj) : -1;
+
+		++races;
+		lastAbandoned = false;
+		int m = 0;
+		int size = Math.min(firstBatch, n);
+
+		while(true){
+			if(size == n && wekaLogistic){
+				rowsScored += n;
+				return PathClassifier.scorePair(ci, cj, data, outputs);
+			}
+
+			for(int r = m; r < size; ++r){
+				if(outputs != null){
+					sums[r] = ci.getWeight()*outputs.getProbability(i, order[r]) + cj.getWeight()*outputs.getProbability(j, order[r]);
+				}
+				else{
+					Instance datum = data.get(order[r]);
+					sums[r] = ci.getWeight()*ci.distributionForInstance(datum)[0] + cj.getWeight()*cj.distributionForInstance(datum)[0];
+				}
+			}
+			m = size;
+
+			fit.fit(sums, classes, m);
+			double acc = (double) PathKernels.countCorrect(fit.getIntercept(), fit.getSlope(), sums, classes, m)/m;
+
+			if(m == n){
+				rowsScored += m;
+				return acc;
+			}
+
+			if(acc + Math.sqrt(Math.log(batches/confidence)/(2.0*m)) < incumbent){
+				rowsScored += m;
+				++abandoned;
+				lastAbandoned = true;
+				return acc;
+			}
+
+			size = Math.min(2*size, n);
+		}
+	}
+
+	/**
+	 * Whether the last edge scored was abandoned, in which case its accuracy was only
+	 * measured on some rows and is not that of PathClassifier.scorePair().
+	 */
+	public boolean wasAbandoned(){
+		return this.lastAbandoned;
+	}
+
+	/**
+	 * Fraction of the rows of every race that were scored.
+	 */
+	public double getRowFraction(){
+		return races > 0 ? rowsScored/((double) races*order.length) : 0.0;
+	}
+
+	public int getRaces(){
+		return this.races;
+	}
+
+	public int getAbandoned(){
+		return this.abandoned;
+	}
+
+	public long getRowsScored(){
+		return this.rowsScored;
+	}
+
+	/**
+	 * @param weka
+	 *   True to fit edges that are not ruled out with weka's Logistic, false to fit
+	 *   them with the LogisticFit given to score()
+	 */
+	public void setWekaLogistic(boolean weka){
+		this.wekaLogistic = weka;
+	}
+
+	public boolean getWekaLogistic(){
+		return this.wekaLogistic;
+	}
+
+	public void setConfidence(double confidence){
+		this.confidence = confidence;
+	}
+
+	public double getConfidence(){
+		return this.confidence;
+	}
+
+	public void setFirstBatch(int rows){
+		this.firstBatch = Math.max(1, rows);
+	}
+
+	public int getFirstBatch(){
+		return this.firstBatch;
+	}
+
+	public String toString(){
+		return "Raced " + races + " edges, " + abandoned + " abandoned, "
+			+ Utils.doubleToString(100.0*getRowFraction(), 2) + "% of rows scored";
+	}
+}
@@ -0,0 +1,99 @@
+package graph;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Accuracy of node pairs that have already been fit, keyed by the IDs of the two
+ * nodes. The accuracy of a pair does not depend on b or on how the nodes are
+ * arranged in the graph, so it can be reused by every graph built from the same
+ * trained nodes and training data.
+ *
+ * @author mchristopher
+ *
+ */
+public class EdgeScoreCache implements Serializable{
+
+	/** Accuracy of each pair fit so far */
+	HashMap<String, Double> scores = new HashMap<String, Double>();
+
+	/** Number of lookups that found a score */
+	int hits = 0;
+
+	/** Number of lookups that did not */
+	int misses = 0;
+
+	/**
+	 * Gets the accuracy of the pair of nodes, in either order.
+	 *
+	 * @return
+	 *   The accuracy, or null if the pair has not been fit
+	 */
+	public Double get(ClassifierNode a, ClassifierNode b){
+
+		Double acc = scores.get(key(a, b));
+
+		if(acc == null){
+			++misses;
+		}
+		else{
+			++hits;
+		}
+
+		return acc;
+	}
+
+	/**
+	 * Records the accuracy of the pair of nodes.
+	 */
+	public void put(ClassifierNode a, ClassifierNode b, double acc){
+		scores.put(key(a, b), acc);
+	}
+
+	/**
+	 * Forgets every pair containing the node, e.g. when it has been retrained. Other
+	 * nodes may share its ID later, so its scores must not be reused.
+	 *
+	 * @return
+	 *   Number of pairs removed
+	 */
+	public int remove(ClassifierNode n){
+
+		String prefix = n.getID() + "|";
+		String suffix = "|" + n.getID();
+		int removed = 0;
+
+		Iterator<String> it = scores.keySet().iterator();
+		while(it.hasNext()){
+			String key = it.next();
+			if(key.startsWith(prefix) || key.endsWith(suffix)){
+				it.remove();
+				++removed;
+			}
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Key identifying the unordered pair of nodes.
+	 */
+	static String key(ClassifierNode a, ClassifierNode b){
+		if(a.getID().compareTo(b.getID()) <= 0){
+			return a.getID() + "|" + b.getID();
+		}
+		return b.getID() + "|" + a.getID();
+	}
+
+	public int size(){
+		return scores.size();
+	}
+
+	public int getHits(){
+		return hits;
+	}
+
+	public int getMisses(){
+		return misses;
+	}
+}
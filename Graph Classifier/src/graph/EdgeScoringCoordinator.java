@@ -0,0 +1,542 @@
+package graph;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import weka.core.Instances;
+
+/**
+ * Shards the scoring of node pairs across a set of local workers. Each worker is
+ * sent the training data, the complete pool of trained nodes and its share of the
+ * pairs. Workers stream the accuracy of each pair back as soon as it is computed,
+ * and the coordinator collects these into a single array that the caller uses to
+ * weight the graph edges.
+ *
+ * If the node outputs have been cached they are sent along with the pool, and the
+ * workers fit pairs from them rather than applying the node classifiers. If enabled
+ * with setWarmStart(), each worker fits its pairs with LogisticFit, warm started
+ * from the last pair in its shard with the same first node.
+ *
+ * Pairs may also be scored in several batches by the same workers: open() starts the
+ * workers and sends them the data and pool once, scorePairs(int[], int[]) then sends
+ * each batch, and close() stops them.
+ *
+ * By default every worker is a separate JVM started on this host and connected over
+ * its standard input/output pipes (see EdgeScoringWorker). An InProcessLauncher can
+ * be used instead to run the same protocol on threads within this JVM.
+ *
+ * @author mchristopher
+ *
+ */
+public class EdgeScoringCoordinator {
+
+	/** Number of workers the pairs are sharded across */
+	int numWorkers;
+
+	/** Used to start each worker */
+	WorkerLauncher launcher;
+
+	/** Whether workers warm start the fit of each pair from the last pair with the same first node */
+	boolean warmStart = false;
+
+	/** Connection to each open worker, null if none are open */
+	Vector<WorkerConnection> conns;
+
+	/** Stream of batches sent to each open worker */
+	Vector<ObjectOutputStream> requests;
+
+	/** Reader of the results of each open worker */
+	Vector<ResultReader> readers;
+
+	/**
+	 * Creates a coordinator using the given number of workers.
+	 *
+	 * @param numWorkers
+	 *   Number of workers to shard pairs across
+	 * @param launcher
+	 *   Used to start each worker
+	 */
+	public EdgeScoringCoordinator(int numWorkers, WorkerLauncher launcher){
+		this.numWorkers = numWorkers;
+		this.launcher = launcher;
+	}
+
+	/**
+	 * Scores each of the pairs first[k] -> second[k] on the workers.
+	 *
+	 * @param nodes
+	 *   Trained weak classifier nodes, indexed by the values in first and second
+	 * @param data
+	 *   Training data used to fit and evaluate each pair
+	 * @param first
+	 *   Index of the first node of each pair
+	 * @param second
+	 *   Index of the second node of each pair
+	 * @param outputs
+	 *   Cached outputs of the nodes on data, sent to the workers in place of applying
+	 *   the node classifiers. May be null.
+	 * @return
+	 *   Accuracy of each pair, in the same order as first and second
+	 * @throws Exception
+	 *   If any worker fails to start or reports an error
+	 */
+	public double[] scorePairs(List<ClassifierNode> nodes, Instances data, int[] first, int[] second, NodeOutputCache outputs) throws Exception{
+
+		this.open(nodes, data, outputs, Math.min(this.numWorkers, first.length));
+		double[] acc = this.scorePairs(first, second);
+		this.close();
+
+		return acc;
+	}
+
+	/**
+	 * Starts the workers and sends each of them the data, the pool and any cached
+	 * outputs, for batches of pairs to be scored with scorePairs(int[], int[]).
+	 *
+	 * @param nodes
+	 *   Trained weak classifier nodes, indexed by the pairs of each batch
+	 * @param data
+	 *   Training data used to fit and evaluate each pair
+	 * @param outputs
+	 *   Cached outputs of the nodes on data, may be null
+	 * @throws Exception
+	 *   If a worker cannot be started or sent the data, in which case every worker
+	 *   already started is stopped
+	 */
+	public void open(List<ClassifierNode> nodes, Instances data, NodeOutputCache outputs) throws Exception{
+		this.open(nodes, data, outputs, this.numWorkers);
+	}
+
+	/**
+	 * Starts the given number of workers, at least one, as open() does.
+	 */
+	void open(List<ClassifierNode> nodes, Instances data, NodeOutputCache outputs, int numWorkers) throws Exception{
+
+		if(this.conns != null){
+			throw new IllegalStateException("Workers are already open");
+		}
+
+		ClassifierNode[] pool = nodes.toArray(new ClassifierNode[nodes.size()]);
+		this.conns = new Vector<WorkerConnection>();
+		this.requests = new Vector<ObjectOutputStream>();
+		this.readers = new Vector<ResultReader>();
+		boolean sent = false;
+
+		try{
+			for(int w = 0; w < Math.max(1, numWorkers); ++w){
+				WorkerConnection conn = this.launcher.launch(w);
+				conns.add(conn);
+
+				//One reader for the whole session, as piped streams fail once the thread reading them exits
+				ResultReader reader = new ResultReader(conn);
+				readers.add(reader);
+				reader.start();
+
+				ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+				requests.add(out);
+
+				out.writeObject(data);
+				out.writeObject(pool);
+				out.writeObject(outputs);
+				out.writeBoolean(warmStart);
+				out.flush();
+			}
+			sent = true;
+		}
+		finally{
+			//A worker could not be started or sent the data: stop every worker already started
+			if(!sent){
+				this.abort();
+			}
+		}
+	}
+
+	/**
+	 * Scores a batch of pairs on the open workers, see open().
+	 *
+	 * @param first
+	 *   Index of the first node of each pair
+	 * @param second
+	 *   Index of the second node of each pair
+	 * @return
+	 *   Accuracy of each pair, in the same order as first and second
+	 * @throws Exception
+	 *   If any worker reports an error or cannot be reached, in which case every
+	 *   worker is stopped
+	 */
+	public double[] scorePairs(int[] first, int[] second) throws Exception{
+
+		if(this.conns == null){
+			throw new IllegalStateException("Workers are not open");
+		}
+
+		double[] acc = new double[first.length];
+		int n = conns.size();
+
+		Vector<Shard> shards = new Vector<Shard>();
+		Exception error = null;
+
+		try{
+			for(int w = 0; w < n; ++w){
+
+				//Round robin sharding so each worker gets pairs from every source node
+				int count = Math.max(0, (first.length - w + n - 1)/n);
+				int[] positions = new int[count];
+				int[] shardFirst = new int[count];
+				int[] shardSecond = new int[count];
+
+				for(int k = 0; k < count; ++k){
+					positions[k] = w + k*n;
+					shardFirst[k] = first[positions[k]];
+					shardSecond[k] = second[positions[k]];
+				}
+
+				Shard shard = new Shard(positions, acc);
+				shards.add(shard);
+				readers.get(w).shards.put(shard);
+
+				//Forget the arrays sent, so the streams do not hold every batch
+				ObjectOutputStream out = requests.get(w);
+				out.writeObject(shardFirst);
+				out.writeObject(shardSecond);
+				out.reset();
+				out.flush();
+			}
+		}
+		catch(Exception e){
+			error = e;
+			this.abort();
+		}
+
+		for(int w = 0; w < shards.size(); ++w){
+			Shard shard = shards.get(w);
+			shard.done.await();
+			if(error == null && shard.error != null){
+				error = shard.error;
+			}
+		}
+
+		if(error != null){
+			this.abort();
+			throw error;
+		}
+
+		return acc;
+	}
+
+	/**
+	 * Tells the open workers there are no more batches and waits for them to exit.
+	 * Does nothing if no workers are open.
+	 */
+	public void close(){
+
+		if(this.conns == null){
+			return;
+		}
+
+		for(int w = 0; w < conns.size(); ++w){
+			try{
+				requests.get(w).writeObject(null);
+				requests.get(w).flush();
+				conns.get(w).close();
+			}
+			catch(IOException e){
+				conns.get(w).abort();
+			}
+			readers.get(w).shards.add(Shard.END);
+		}
+
+		this.conns = null;
+		this.requests = null;
+		this.readers = null;
+	}
+
+	/**
+	 * Stops the open workers without waiting for their results.
+	 */
+	void abort(){
+
+		if(this.conns == null){
+			return;
+		}
+
+		for(int w = 0; w < conns.size(); ++w){
+			conns.get(w).abort();
+		}
+		for(int w = 0; w < readers.size(); ++w){
+			readers.get(w).shards.add(Shard.END);
+		}
+
+		this.conns = null;
+		this.requests = null;
+		this.readers = null;
+	}
+
+	public void setWarmStart(boolean warmStart){
+		this.warmStart = warmStart;
+	}
+
+	public boolean getWarmStart(){
+		return this.warmStart;
+	}
+
+	/**
+	 * Pairs of one batch sent to a single worker.
+	 */
+	static class Shard{
+
+		/** Marks the end of a session */
+		static final Shard END = new Shard(new int[0], null);
+
+		/** Position in the result array of each pair in the shard */
+		final int[] positions;
+
+		final double[] acc;
+
+		/** Counted down once the results have been read or have failed */
+		final CountDownLatch done = new CountDownLatch(1);
+
+		volatile Exception error;
+
+		Shard(int[] positions, double[] acc){
+			this.positions = positions;
+			this.acc = acc;
+		}
+	}
+
+	/**
+	 * Reads the results streamed back by a single worker, one shard at a time.
+	 */
+	private static class ResultReader extends Thread{
+
+		WorkerConnection conn;
+
+		/** Shards sent to the worker whose results are still to be read */
+		final BlockingQueue<Shard> shards = new LinkedBlockingQueue<Shard>();
+
+		public ResultReader(WorkerConnection conn){
+			this.conn = conn;
+			this.setDaemon(true);
+		}
+
+		public void run(){
+
+			ObjectInputStream in = null;
+			boolean failed = false;
+
+			try{
+				Shard shard;
+				while((shard = shards.take()) != Shard.END){
+					try{
+						if(failed){
+							throw new Exception("Edge scoring worker has already failed");
+						}
+						if(in == null){
+							in = new ObjectInputStream(new BufferedInputStream(conn.getInputStream()));
+						}
+						this.read(in, shard);
+					}
+					catch(Exception e){
+						shard.error = e;
+						failed = true;
+					}
+					finally{
+						shard.done.countDown();
+					}
+				}
+			}
+			catch(InterruptedException e){
+				//Session abandoned
+			}
+		}
+
+		void read(ObjectInputStream in, Shard shard) throws Exception{
+
+			int received = 0;
+			while(true){
+				int k = in.readInt();
+
+				if(k == EdgeScoringWorker.DONE){
+					break;
+				}
+				if(k == EdgeScoringWorker.FAILED){
+					throw new Exception("Edge scoring worker failed: " + in.readUTF());
+				}
+
+				shard.acc[shard.positions[k]] = in.readDouble();
+				++received;
+			}
+
+			if(received != shard.positions.length){
+				throw new Exception("Edge scoring worker returned " + received + " of " + shard.positions.length + " pairs");
+			}
+		}
+	}
+
+	/**
+	 * Starts the worker with the given index and returns a connection to it.
+	 */
+	public interface WorkerLauncher{
+		public WorkerConnection launch(int worker) throws IOException;
+	}
+
+	/**
+	 * Connection to a running worker.
+	 */
+	public interface WorkerConnection{
+
+		/** Stream of results sent by the worker */
+		public InputStream getInputStream();
+
+		/** Stream of requests sent to the worker */
+		public OutputStream getOutputStream();
+
+		/** Releases the worker once it has been told there are no more batches */
+		public void close();
+
+		/** Stops the worker without waiting for its results */
+		public void abort();
+	}
+
+	/**
+	 * Starts each worker as a separate JVM with the same classpath as this one,
+	 * communicating over the standard input and output pipes of the process.
+	 */
+	public static class ProcessLauncher implements WorkerLauncher{
+
+		/** Extra arguments given to each worker JVM, e.g. -Xmx4g */
+		String[] jvmArgs;
+
+		public ProcessLauncher(){
+			this(new String[0]);
+		}
+
+		public ProcessLauncher(String[] jvmArgs){
+			this.jvmArgs = jvmArgs;
+		}
+
+		public WorkerConnection launch(int worker) throws IOException{
+
+			Vector<String> cmd = new Vector<String>();
+			cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			for(int i = 0; i < jvmArgs.length; ++i){
+				cmd.add(jvmArgs[i]);
+			}
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add(EdgeScoringWorker.class.getName());
+
+			final Process proc = new ProcessBuilder(cmd).start();
+
+			//Stdout carries results, so diagnostics from the worker are copied to our stderr
+			Thread errCopy = new Thread(){
+				public void run(){
+					try{
+						InputStream err = proc.getErrorStream();
+						byte[] buf = new byte[4096];
+						int len;
+						while((len = err.read(buf)) > 0){
+							System.err.write(buf, 0, len);
+						}
+					}
+					catch(IOException e){
+						//Worker exited
+					}
+				}
+			};
+			errCopy.setDaemon(true);
+			errCopy.start();
+
+			return new WorkerConnection(){
+				public InputStream getInputStream(){
+					return proc.getInputStream();
+				}
+				public OutputStream getOutputStream(){
+					return proc.getOutputStream();
+				}
+				public void close(){
+					try{
+						proc.getOutputStream().close();
+						proc.waitFor();
+					}
+					catch(Exception e){
+						proc.destroy();
+					}
+				}
+				public void abort(){
+					proc.destroy();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Runs each worker on a thread in this JVM, connected by pipes. Requests and
+	 * results still go through serialization, so this behaves like ProcessLauncher
+	 * without the cost of starting new JVMs.
+	 */
+	public static class InProcessLauncher implements WorkerLauncher{
+
+		public WorkerConnection launch(int worker) throws IOException{
+
+			final PipedOutputStream toWorker = new PipedOutputStream();
+			final PipedInputStream workerIn = new PipedInputStream(toWorker, 1 << 16);
+			final PipedOutputStream workerOut = new PipedOutputStream();
+			final PipedInputStream fromWorker = new PipedInputStream(workerOut, 1 << 16);
+
+			final Thread t = new Thread("edge-worker-" + worker){
+				public void run(){
+					try{
+						EdgeScoringWorker.serve(workerIn, workerOut);
+					}
+					catch(IOException e){
+						e.printStackTrace();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+
+			return new WorkerConnection(){
+				public InputStream getInputStream(){
+					return fromWorker;
+				}
+				public OutputStream getOutputStream(){
+					return toWorker;
+				}
+				public void close(){
+					try{
+						toWorker.close();
+						t.join();
+					}
+					catch(Exception e){
+						t.interrupt();
+					}
+				}
+				public void abort(){
+					//The worker and the reader both fail on their next pipe access
+					try{
+						toWorker.close();
+						fromWorker.close();
+					}
+					catch(IOException e){
+						//Already closed
+					}
+					t.interrupt();
+				}
+			};
+		}
+	}
+}
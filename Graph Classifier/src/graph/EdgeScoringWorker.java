@@ -0,0 +1,117 @@
+package graph;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import weka.core.Instances;
+
+/**
+ * Worker side of EdgeScoringCoordinator. Reads the training data, the node pool,
+ * any cached node outputs and whether to warm start pair fits, then shards of node
+ * pairs until it reads null in place of one, writing the accuracy of each pair back
+ * as it is computed.
+ *
+ * The results of each shard are written as (int position in shard, double accuracy)
+ * records followed by DONE, or FAILED and a message if scoring could not be
+ * completed, after which the worker exits.
+ *
+ * @author mchristopher
+ *
+ */
+public class EdgeScoringWorker {
+
+	/** Marks the end of a shard's results */
+	public static final int DONE = -1;
+
+	/** Marks a failed shard, followed by an error message */
+	public static final int FAILED = -2;
+
+	/** Number of results written between flushes of the output stream */
+	static final int FLUSH_EVERY = 16;
+
+	/**
+	 * Scores the shards read from in, writing results to out.
+	 *
+	 * @param in
+	 *   Stream the shard is read from
+	 * @param out
+	 *   Stream the results are written to
+	 * @throws IOException
+	 *   If the connection to the coordinator is lost
+	 */
+	public static void serve(InputStream in, OutputStream out) throws IOException{
+
+		ObjectOutputStream results = new ObjectOutputStream(new BufferedOutputStream(out));
+		results.flush();
+
+		try{
+			ObjectInputStream request = new ObjectInputStream(new BufferedInputStream(in));
+
+			Instances data = (Instances) request.readObject();
+			ClassifierNode[] pool = (ClassifierNode[]) request.readObject();
+			NodeOutputCache outputs = (NodeOutputCache) request.readObject();
+			boolean warmStart = request.readBoolean();
+
+			//Fit of the last pair leaving each node, to warm start the next one from
+			LogisticFit[] fits = new LogisticFit[pool.length];
+
+			int[] first;
+			while((first = (int[]) request.readObject()) != null){
+				int[] second = (int[]) request.readObject();
+
+				for(int k = 0; k < first.length; ++k){
+					LogisticFit fit = null;
+					if(warmStart){
+						if(fits[first[k]] == null){
+							fits[first[k]] = new LogisticFit();
+						}
+						fit = fits[first[k]];
+					}
+
+					double acc = PathClassifier.scorePair(pool[first[k]], pool[second[k]], data, outputs, fit);
+
+					results.writeInt(k);
+					results.writeDouble(acc);
+
+					if(k % FLUSH_EVERY == FLUSH_EVERY - 1){
+						results.flush();
+					}
+				}
+
+				results.writeInt(DONE);
+				results.flush();
+			}
+		}
+		catch(Exception e){
+			e.printStackTrace();
+			results.writeInt(FAILED);
+			results.writeUTF(String.valueOf(e));
+		}
+
+		results.close();
+	}
+
+	/**
+	 * Entry point of worker processes started by EdgeScoringCoordinator.ProcessLauncher.
+	 * The shard is read from standard input and results written to standard output.
+	 */
+	public static void main(String args[]){
+
+		//Weak classifiers may print while training, keep that off the result stream
+		OutputStream out = System.out;
+		System.setOut(new PrintStream(System.err, true));
+
+		try{
+			serve(System.in, out);
+		}
+		catch(IOException e){
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package graph;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Square matrix of edge weights between the nodes of a graph, kept in a memory mapped
+ * file rather than on the heap. The heap only holds the mapping, so the number of
+ * nodes is limited by disk space and the operating system pages weights in and out
+ * as they are used.
+ *
+ * Row u holds the weights of the edges leaving node u. Missing edges are stored as NaN.
+ * The file is split into several mappings, each holding whole rows, since a single
+ * mapping cannot exceed 2GB.
+ *
+ * @author mchristopher
+ *
+ */
+public class EdgeWeightMatrix {
+
+	/** Largest number of bytes in a single mapping */
+	static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	/** Number of nodes */
+	final int n;
+
+	/** Number of rows held by each mapping */
+	final int rowsPerSegment;
+
+	/** Mapped rows */
+	final DoubleBuffer[] segments;
+
+	/** File backing the matrix */
+	final RandomAccessFile file;
+
+	/**
+	 * Creates a matrix of n x n missing edges backed by the given file, replacing
+	 * anything already in it.
+	 *
+	 * @param f
+	 *   File to keep the weights in
+	 * @param n
+	 *   Number of nodes
+	 * @throws IOException
+	 */
+	public EdgeWeightMatrix(File f, int n) throws IOException{
+
+		this.n = n;
+		this.rowsPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES/(8L*Math.max(n, 1)));
+		this.segments = new DoubleBuffer[(n + rowsPerSegment - 1)/rowsPerSegment];
+
+		this.file = new RandomAccessFile(f, "rw");
+		this.file.setLength(8L*n*n);
+
+		FileChannel channel = this.file.getChannel();
+		double[] missing = new double[n];
+		Arrays.fill(missing, Double.NaN);
+
+		for(int s = 0; s < segments.length; ++s){
+			int rows = Math.min(rowsPerSegment, n - s*rowsPerSegment);
+			long offset = 8L*n*s*rowsPerSegment;
+
+			segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, offset, 8L*n*rows).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+
+			for(int r = 0; r < rows; ++r){
+				segments[s].put(missing);
+			}
+		}
+	}
+
+	/**
+	 * Weight of the edge u -> v, or NaN if there is no such edge.
+	 */
+	public double get(int u, int v){
+		return segments[u/rowsPerSegment].get((u % rowsPerSegment)*n + v);
+	}
+
+	/**
+	 * Sets the weight of the edge u -> v.
+	 */
+	public void set(int u, int v, double w){
+		segments[u/rowsPerSegment].put((u % rowsPerSegment)*n + v, w);
+	}
+
+	/**
+	 * Copies the weights of the edges leaving u into row.
+	 *
+	 * @param u
+	 *   Source node of the edges
+	 * @param row
+	 *   Array of at least n values to copy the weights into
+	 */
+	public void getRow(int u, double[] row){
+		DoubleBuffer seg = segments[u/rowsPerSegment].duplicate();
+		seg.position((u % rowsPerSegment)*n);
+		seg.get(row, 0, n);
+	}
+
+	public int size(){
+		return n;
+	}
+
+	/**
+	 * Releases the file. The mapping itself stays valid until it is garbage collected.
+	 */
+	public void close() throws IOException{
+		file.close();
+	}
+
+	/**
+	 * Finds the cheapest path from a start vertex, through the nodes, to an end vertex
+	 * using at most maxHops edges. The start and end are not nodes of the matrix, their
+	 * edges are given separately. As with SparsePathSearch, only the rows of nodes whose
+	 * cost improved on the previous pass are read on each pass, in node order.
+	 *
+	 * @param fromStart
+	 *   Weight of the edge from the start to each node, NaN if there is none
+	 * @param toEnd
+	 *   Weight of the edge from each node to the end, NaN if there is none
+	 * @param maxHops
+	 *   Largest number of edges allowed on the path, including those to the start
+	 *   and end
+	 * @return
+	 *   The nodes on the path in order, or null if the end cannot be reached
+	 */
+	public int[] findPath(double[] fromStart, double[] toEnd, int maxHops){
+
+		//Records of each improvement, as in SparsePathSearch
+		SparsePathSearch.GrowableInts recVertex = new SparsePathSearch.GrowableInts();
+		SparsePathSearch.GrowableInts recPrev = new SparsePathSearch.GrowableInts();
+
+		double[] cost = new double[n];
+		int[] best = new int[n];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		Arrays.fill(best, -1);
+
+		double endCost = Double.POSITIVE_INFINITY;
+		int endRec = -1;
+
+		//First pass, from the start
+		boolean[] improved = new boolean[n];
+		for(int v = 0; v < n; ++v){
+			if(fromStart[v] < cost[v]){
+				cost[v] = fromStart[v];
+				best[v] = recVertex.add(v);
+				recPrev.add(-1);
+				improved[v] = true;
+			}
+		}
+
+		double[] row = new double[n];
+
+		for(int hop = 1; hop < maxHops; ++hop){
+
+			//Costs and records as of the end of the previous pass
+			int[] frontier = new int[n];
+			int size = 0;
+			for(int u = 0; u < n; ++u){
+				if(improved[u]){
+					frontier[size++] = u;
+					improved[u] = false;
+				}
+			}
+			if(size == 0){
+				break;
+			}
+
+			double[] frontierCost = new double[size];
+			int[] frontierRec = new int[size];
+			for(int f = 0; f < size; ++f){
+				frontierCost[f] = cost[frontier[f]];
+				frontierRec[f] = best[frontier[f]];
+			}
+
+			for(int f = 0; f < size; ++f){
+				int u = frontier[f];
+
+				double c = frontierCost[f] + toEnd[u];
+				if(c < endCost){
+					endCost = c;
+					endRec = frontierRec[f];
+				}
+
+				//The last pass may only reach the end
+				if(hop == maxHops - 1){
+					continue;
+				}
+
+				this.getRow(u, row);
+
+				for(int v = 0; v < n; ++v){
+					c = frontierCost[f] + row[v];
+
+					if(c < cost[v]){
+						cost[v] = c;
+						best[v] = recVertex.add(v);
+						recPrev.add(frontierRec[f]);
+						improved[v] = true;
+					}
+				}
+			}
+		}
+
+		if(endRec < 0){
+			return null;
+		}
+
+		int length = 0;
+		for(int r = endRec; r >= 0; r = recPrev.get(r)){
+			++length;
+		}
+
+		int[] path = new int[length];
+		for(int r = endRec, k = length - 1; r >= 0; r = recPrev.get(r), --k){
+			path[k] = recVertex.get(r);
+		}
+
+		return path;
+	}
+}
@@ -1,20 +1,28 @@
 package graph;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jgrapht.alg.BellmanFordShortestPath;
 import org.jgrapht.graph.DefaultDirectedWeightedGraph;
 
-import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
 import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionHandler;
+import weka.core.Utils;
 import weka.core.converters.ArffLoader;
 import weka.core.converters.CSVLoader;
 import weka.filters.Filter;
@@ -35,21 +43,60 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	/** Value in (0,1] indicating size of data set used for each weak classifier */
 	double p = 0.10;
 	
+	/** Whether p is chosen by progressive sampling at the start of each build, see chooseProportion() */
+	boolean autoProportion = false;
+	
+	/** Smallest accuracy gain from doubling the sample that is not considered a plateau */
+	double plateauTolerance = 0.005;
+	
+	/** Sample size of the first probe learner trained by chooseProportion() */
+	public static final int PROBE_MIN_ROWS = 50;
+	
+	/** Number of doublings in a row without accuracy gain that end progressive sampling */
+	public static final int PLATEAU_STALLS = 2;
+	
+	/** Number of probe learners trained and averaged at each sample size */
+	public static final int PROBE_REPEATS = 3;
+	
+	/** Largest number of rows held out to measure the accuracy of probe learners */
+	public static final int PROBE_VALIDATION_ROWS = 2000;
+	
+	/** Least number of pairs scored together when edge weights are written to the edge store */
+	public static final int STORE_BATCH_PAIRS = 1 << 16;
+	
 	/** Weight connecting each weak classifier to sink. Serves as threshold for graph search. */
 	double b = 0.00;
 	
+	/** Number of randomly chosen attributes each weak classifier is trained on, 0 uses all attributes */
+	int subspaceSize = 0;
+	
 	/** Fully qualified class name of the classifiers used to build ensemble model */
 	String classfierName;
 	
 	/** Arguments used to create classifiers. Passed to weka method Classifier.forName() */
 	String classArgs[];
 	
+	/** Types of weak classifier, given to the pool positions in turn. Null uses classfierName and classArgs for every node. */
+	Vector<LearnerSpec> learners = null;
+	
+	/** Number of threads the weak classifiers are trained on, 1 trains them on the calling thread */
+	int numBuildThreads = 1;
+	
+	/** Training times of the weak classifiers built so far, used to schedule their training */
+	LearnerCostModel costModel = new LearnerCostModel();
+	
 	/** Capabilities of the classifier, same as for weak classifier */
 	Capabilities caps;
 	
 	/** Training data set */
 	Instances trainData;
 	
+	/** Attributes and class labels of the training data, without its rows */
+	Instances header;
+	
+	/** Number of nodes retrained by refreshNodes() since the model was built */
+	int numRefreshed = 0;
+	
 	/** Set of weak classifiers to search through*/
 	DefaultDirectedWeightedGraph<ClassifierNode, ClassifierEdge> graph;
 	
@@ -62,6 +109,110 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	/** Path representing the best set of weak classifiers */
 	PathClassifier path;
 	
+	/** Weak classifier nodes in pool order */
+	Vector<ClassifierNode> pool;
+	
+	/** 
+	 * File the weights of the edges between nodes are kept in, memory mapped, rather 
+	 * than as edges in the graph. Only used for complete graphs. Null keeps them in 
+	 * the graph.
+	 */
+	File edgeStore = null;
+	
+	/** Weights of the edges between nodes, when kept in edgeStore */
+	transient EdgeWeightMatrix edgeWeights;
+	
+	/** Snapshot of the graph from the last path search, updated when nodes are replaced */
+	transient SparsePathSearch<ClassifierNode, ClassifierEdge> search;
+	
+	/** 
+	 * Number of most promising outgoing edges of each node that are fit exactly, the rest 
+	 * are estimated from the diversity of node predictions. 0 fits every edge exactly.
+	 */
+	int exactEdgesPerNode = 0;
+	
+	/** 
+	 * Number of partners each node is connected to, chosen by the diversity of node
+	 * predictions. 0 builds the complete graph.
+	 */
+	int numNeighbours = 0;
+	
+	/** 
+	 * Bits used to cache node outputs on the training data while fitting edges, one of
+	 * the NodeOutputCache precisions. PRECISION_NONE applies the node classifiers for 
+	 * every edge instead.
+	 */
+	int outputPrecision = NodeOutputCache.PRECISION_NONE;
+	
+	/** Outputs of the weak classifiers on the training data, when cached */
+	transient NodeOutputCache outputs;
+	
+	/** Accuracy of node pairs already fit, shared between builds from the same nodes */
+	transient EdgeScoreCache edgeScores;
+	
+	/** Whether each edge fit is warm started from the last edge fit with the same source node, see LogisticFit */
+	boolean warmStartEdges = false;
+	
+	/** Whether edges out of each node are raced against the best so far, see EdgeRace. Not supported with workers. */
+	boolean raceEdges = false;
+	
+	/** Probability of abandoning an edge that would have beaten the best edge out of its node */
+	double raceConfidence = 0.05;
+	
+	/** Newton steps taken by the edge fits of the last call to fitPairs() in this JVM */
+	long edgeFitIterations;
+	
+	/** Number of local worker processes used to score edges, 0 scores all edges in this JVM */
+	int numWorkers = 0;
+	
+	/** Starts the edge scoring workers, a separate JVM per worker unless set otherwise */
+	transient EdgeScoringCoordinator.WorkerLauncher launcher;
+	
+	/** Workers kept open while the pairs of a stored graph are scored in batches, null otherwise */
+	transient EdgeScoringCoordinator workers;
+	
+	/** Whether the model may be used to classify from several threads at once */
+	boolean concurrentInference = false;
+	
+	/** Thread-safe compiled form of the path, when concurrent inference is enabled */
+	transient volatile ConcurrentScorer scorer;
+	
+	/** Largest change in class probability allowed by stopping inference early, negative to apply every path node */
+	double earlyExitTolerance = -1.0;
+	
+	/** Early exit compiled form of the path, when earlyExitTolerance is not negative */
+	transient volatile CascadeScorer cascade;
+	
+	/** Where inference times are recorded, null to not record them */
+	transient InferenceTelemetry telemetry;
+	
+	/** Class probabilities of data points already scored, null to always score */
+	transient PredictionCache predictionCache;
+	
+	/** Source of version numbers, unique across every model in this JVM */
+	static final AtomicLong VERSIONS = new AtomicLong();
+	
+	/** Version of the compiled path, a new one each time the path or inference settings change */
+	transient volatile long version;
+	
+	/** Seed the sample of each weak classifier is drawn from, a new one for each build if null */
+	Long seed = null;
+	
+	/** Directory build state is checkpointed to, so an interrupted build can be resumed. Null disables checkpoints. */
+	File checkpointDir = null;
+	
+	/** Milliseconds between checkpoints of the edges fit so far */
+	long checkpointInterval = 60000;
+	
+	/** Checkpoint of the build in progress */
+	transient BuildCheckpoint checkpoint;
+	
+	/** Time of the last edge checkpoint */
+	transient long lastCheckpoint;
+	
+	/** Whether progress of the build is printed */
+	boolean debug = false;
+	
 	String[] args = new String[0];
 	
 	public GraphClassifier(){
@@ -96,53 +247,509 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	public void buildClassifier(Instances data) throws Exception{
 		
 		this.caps = null;
+		this.outputs = null;
+		this.edgeScores = null;
 		this.trainData = data;
+		this.checkpoint = null;
 		
-		Random rand = new Random();
+		//Resume from the checkpoint of an interrupted build of this model, if there is one
+		if(this.checkpointDir != null){
+			long s = this.seed != null ? this.seed.longValue() : new Random().nextLong();
+			this.checkpoint = new BuildCheckpoint(this.checkpointDir, BuildCheckpoint.fingerprint(this, data), s);
+			this.edgeScores = this.checkpoint.loadEdgeScores();
+			this.lastCheckpoint = System.currentTimeMillis();
+		}
 		
-		graph = new DefaultDirectedWeightedGraph<ClassifierNode,ClassifierEdge>(ClassifierEdge.class);
+		if(this.autoProportion){
+			this.trainData = data;
+			this.p = this.chooseProportion(data);
+		}
 		
-		src = new ClassifierNode("s");
-		sink = new ClassifierNode("t");
+		this.buildFromNodes(data, this.trainNodes(data));
 		
-		graph.addVertex(src);
-		graph.addVertex(sink);
+		//Nothing left to resume
+		if(this.checkpoint != null){
+			this.checkpoint.clear();
+			this.checkpoint = null;
+		}
+	}
+	
+	/**
+	 * Builds and weights each weak classifier in the pool, without connecting them
+	 * into a graph. When the build is checkpointed, nodes saved by an interrupted 
+	 * build are loaded rather than trained, and each new node is saved once trained.
+	 * 
+	 * @param data
+	 *   The set of data on which to train
+	 * @return
+	 *   The trained nodes, in pool order
+	 * @throws Exception
+	 */
+	public List<ClassifierNode> trainNodes(Instances data) throws Exception{
 		
-		for(int i = 0; i < this.size; ++i){
-
-			//Build weak classifier
-			ClassifierNode c = new ClassifierNode(this.getClassifierName(i));
-			c.setClassifier(AbstractClassifier.forName(this.classfierName, this.classArgs));
-
-			if(this.caps == null){
-				this.caps = c.getClassifier().getCapabilities();
+		this.trainData = data;
+		
+		Random rand = this.buildRandom();
+		
+		final ClassifierNode[] trained = new ClassifierNode[this.poolSize()];
+		Vector<BuildScheduler.Task> tasks = new Vector<BuildScheduler.Task>();
+		
+		for(int i = 0; i < this.poolSize(); ++i){
+			
+			//Drawn for every node, so resumed nodes keep their seeds
+			final int sampleSeed = rand.nextInt();
+			final int position = i;
+			
+			trained[i] = this.checkpoint != null ? this.checkpoint.loadNode(i) : null;
+			
+			if(trained[i] == null){
+				tasks.add(new BuildScheduler.Task(this.estimateCost(i)){
+					public void run() throws Exception{
+						trained[position] = trainNode(position, sampleSeed);
+						
+						if(checkpoint != null){
+							checkpoint.saveNode(position, trained[position]);
+						}
+					}
+				});
+			}
+			else if(this.caps == null){
+				this.caps = trained[i].getClassifier().getCapabilities();
+			}
+		}
+		
+		if(this.numBuildThreads > 1 && tasks.size() > 1){
+			BuildScheduler scheduler = new BuildScheduler(this.numBuildThreads);
+			scheduler.run(tasks);
+			if(this.debug){
+				System.out.println(scheduler);
+			}
+		}
+		else{
+			for(int k = 0; k < tasks.size(); ++k){
+				tasks.get(k).run();
+			}
+		}
+		
+		return new Vector<ClassifierNode>(Arrays.asList(trained));
+	}
+	
+	/**
+	 * Type of the weak classifier at a position of the pool.
+	 * 
+	 * @param i
+	 *   Position in the pool
+	 * @return
+	 *   The position's spec from the learners set, taken in turn, or classfierName 
+	 *   and classArgs if none are set
+	 */
+	public LearnerSpec learnerFor(int i){
+		
+		if(this.learners == null){
+			return new LearnerSpec(this.classfierName, this.classArgs);
+		}
+		
+		return this.learners.get(i % this.learners.size());
+	}
+	
+	/**
+	 * Estimated training time of the weak classifier at a position of the pool, from
+	 * the size of its sample and the training times of earlier nodes of its type.
+	 */
+	double estimateCost(int i){
+		
+		boolean subspace = this.subspaceSize > 0 && this.subspaceSize < trainData.numAttributes() - 1;
+		int rows = (int) (trainData.numInstances()*p);
+		int atts = subspace ? this.subspaceSize + 1 : trainData.numAttributes();
+		
+		return this.costModel.estimate(this.learnerFor(i), rows, atts);
+	}
+	
+	/**
+	 * Gets a random generator for the sampling of a build, seeded from the checkpoint
+	 * if there is one so a resumed build draws the same samples, otherwise from seed.
+	 */
+	Random buildRandom(){
+		
+		if(this.checkpoint != null){
+			return new Random(this.checkpoint.getSeed());
+		}
+		else if(this.seed != null){
+			return new Random(this.seed.longValue());
+		}
+		
+		return new Random();
+	}
+	
+	/**
+	 * Chooses the proportion of the training data to train each weak classifier on by
+	 * progressive sampling. Probe learners of the same kind as the weak classifiers are
+	 * trained on samples of PROBE_MIN_ROWS rows, then twice as many, and so on, and 
+	 * their accuracy measured on rows held out of every sample. Sampling stops once 
+	 * PLATEAU_STALLS doublings in a row gain less than plateauTolerance accuracy over
+	 * the best so far, as the learning curve has flattened by then, and the smallest 
+	 * sample within plateauTolerance of the best is chosen.
+	 * 
+	 * @param data
+	 *   The set of data on which to train
+	 * @return
+	 *   The chosen proportion, in (0,1]
+	 * @throws Exception
+	 */
+	public double chooseProportion(Instances data) throws Exception{
+		
+		Random rand = this.buildRandom();
+		
+		int n = data.numInstances();
+		int numValidation = Math.min(PROBE_VALIDATION_ROWS, n/4);
+		if(numValidation < 1){
+			return this.p;
+		}
+		
+		int[] perm = new int[n];
+		for(int r = 0; r < n; ++r){
+			perm[r] = r;
+		}
+		for(int r = n - 1; r > 0; --r){
+			int swap = rand.nextInt(r + 1);
+			int tmp = perm[r];
+			perm[r] = perm[swap];
+			perm[swap] = tmp;
+		}
+		
+		Instances validation = new Instances(data, numValidation);
+		for(int r = 0; r < numValidation; ++r){
+			validation.add(data.get(perm[r]));
+		}
+		int[] rows = Arrays.copyOfRange(perm, numValidation, n);
+		
+		Vector<Integer> sizes = new Vector<Integer>();
+		Vector<Double> accuracies = new Vector<Double>();
+		double best = -1.0;
+		int stalls = 0;
+		
+		for(int m = Math.min(PROBE_MIN_ROWS, rows.length); ; m = Math.min(2*m, rows.length)){
+			
+			double accuracy = 0.0;
+			for(int k = 0; k < PROBE_REPEATS; ++k){
+				accuracy += this.probeAccuracy(k, rand, m, rows, validation)/PROBE_REPEATS;
+			}
+			if(this.debug){
+				System.out.println("Probe on " + m + " rows: accuracy " + accuracy);
+			}
+			
+			sizes.add(m);
+			accuracies.add(accuracy);
+			
+			//A single doubling without gain may be noise, two in a row are a plateau
+			if(accuracy >= best + this.plateauTolerance){
+				best = accuracy;
+				stalls = 0;
+			}
+			else if(++stalls == PLATEAU_STALLS){
+				break;
 			}
 			
+			if(m == rows.length){
+				break;
+			}
+		}
+		
+		//Smallest sample that comes within the tolerance of the best
+		int k = 0;
+		while(accuracies.get(k) < best - this.plateauTolerance){
+			++k;
+		}
+		
+		double chosen = sizes.get(k)/(double) n;
+		if(this.debug){
+			System.out.println("Chose p = " + chosen);
+		}
+		
+		return chosen;
+	}
+	
+	/**
+	 * Trains a probe learner on a sample of the given rows, drawn as the weak classifiers'
+	 * samples are, and measures its accuracy.
+	 * 
+	 * @param i
+	 *   Pool position whose type of weak classifier the probe is
+	 * @param rand
+	 *   Random generator used to draw the sample
+	 * @param numRows
+	 *   Size of the sample
+	 * @param rows
+	 *   Rows of the training data the sample is drawn from
+	 * @param validation
+	 *   Data the accuracy is measured on
+	 * @return
+	 *   Accuracy of the probe on the validation data
+	 * @throws Exception
+	 */
+	double probeAccuracy(int i, Random rand, int numRows, int[] rows, Instances validation) throws Exception{
+		
+		ClassifierNode c = this.trainNodeOnRows(i, "probe", rand, numRows, rows);
+		c.evaluateOnData(validation);
+		
+		return c.getWeight();
+	}
+	
+	/**
+	 * Builds a weak classifier on a sample of some of the rows of the training data,
+	 * drawn with replacement as for the nodes of the pool. The node is not weighted.
+	 * 
+	 * @param i
+	 *   Pool position whose type of weak classifier is trained
+	 * @param id
+	 *   ID of the node
+	 * @param rand
+	 *   Random generator used to draw the sample
+	 * @param numRows
+	 *   Size of the sample
+	 * @param rows
+	 *   Rows of the training data the sample is drawn from
+	 * @return
+	 *   The trained node
+	 * @throws Exception
+	 */
+	protected ClassifierNode trainNodeOnRows(int i, String id, Random rand, int numRows, int[] rows) throws Exception{
+		
+		ClassifierNode c = new ClassifierNode(id);
+		c.setClassifier(this.learnerFor(i).newClassifier());
+		
+		if(this.caps == null){
+			this.caps = c.getClassifier().getCapabilities();
+		}
+		
+		Instances sample;
+		if(this.subspaceSize > 0 && this.subspaceSize < trainData.numAttributes() - 1){
+			sample = this.sampleSubspace(c, rand, numRows, rows);
+		}
+		else{
+			sample = new Instances(trainData, numRows);
+			for(int r = 0; r < numRows; ++r){
+				sample.add(trainData.get(rows[rand.nextInt(rows.length)]));
+			}
+		}
+		
+		c.buildModel(sample);
+		
+		return c;
+	}
+	
+	/**
+	 * Builds and weights a single weak classifier on a sample of the training data.
+	 * 
+	 * @param i
+	 *   Index of the classifier in the pool
+	 * @param sampleSeed
+	 *   Seed used to draw the sample
+	 * @return
+	 *   The trained node
+	 * @throws Exception
+	 */
+	protected ClassifierNode trainNode(int i, int sampleSeed) throws Exception{
+		
+		long start = System.currentTimeMillis();
+		
+		//Build weak classifier
+		LearnerSpec spec = this.learnerFor(i);
+		ClassifierNode c = new ClassifierNode(this.getClassifierName(i));
+		c.setClassifier(spec.newClassifier());
+
+		if(this.caps == null){
+			this.caps = c.getClassifier().getCapabilities();
+		}
+		
+		Instances curdata;
+		
+		if(this.subspaceSize > 0 && this.subspaceSize < trainData.numAttributes() - 1){
+			curdata = this.sampleSubspace(c, sampleSeed);
+		}
+		else{
 			Resample sampler = new Resample();
 			sampler.setInputFormat(trainData);
 			sampler.setSampleSizePercent(100.0*p);
-			sampler.setRandomSeed(rand.nextInt());
+			sampler.setRandomSeed(sampleSeed);
 			
-			Instances curdata = Filter.useFilter(trainData, sampler);
-			System.out.println(curdata.get(i));
-
-			c.buildModel(curdata);
-			c.evaluateOnData(trainData);
+			curdata = Filter.useFilter(trainData, sampler);
+		}
 
+		c.buildModel(curdata);
+		c.evaluateOnData(trainData);
+		
+		this.costModel.record(spec, curdata.numInstances(), curdata.numAttributes(), System.currentTimeMillis() - start);
+		
+		return c;
+	}
+	
+	/**
+	 * Draws a random subset of subspaceSize attributes, plus the class, and a sample of
+	 * the rows of the training data with replacement, as Resample would. The sample is
+	 * made of ProjectedInstance views of the training rows, so no values are copied. 
+	 * The node is given the projection so it is applied to the same attributes later.
+	 * 
+	 * @param c
+	 *   Node the sample is for
+	 * @param sampleSeed
+	 *   Seed used to draw the attributes and rows
+	 * @return
+	 *   Projected sample of the training data
+	 */
+	protected Instances sampleSubspace(ClassifierNode c, int sampleSeed){
+		return this.sampleSubspace(c, new Random(sampleSeed), (int) (trainData.numInstances()*p), null);
+	}
+	
+	/**
+	 * Draws a random subset of subspaceSize attributes, plus the class, and a sample of
+	 * the given rows of the training data with replacement.
+	 * 
+	 * @param c
+	 *   Node the sample is for
+	 * @param rand
+	 *   Random generator used to draw the attributes and rows
+	 * @param numRows
+	 *   Size of the sample
+	 * @param rows
+	 *   Rows of the training data to draw from, or null to draw from every row
+	 * @return
+	 *   Projected sample of the training data
+	 */
+	protected Instances sampleSubspace(ClassifierNode c, Random rand, int numRows, int[] rows){
+		
+		int numAtts = trainData.numAttributes();
+		int classIndex = trainData.classIndex();
+		
+		//Partial shuffle of the non-class attributes
+		int[] candidates = new int[numAtts - 1];
+		for(int a = 0, k = 0; a < numAtts; ++a){
+			if(a != classIndex){
+				candidates[k++] = a;
+			}
+		}
+		for(int k = 0; k < this.subspaceSize; ++k){
+			int swap = k + rand.nextInt(candidates.length - k);
+			int tmp = candidates[k];
+			candidates[k] = candidates[swap];
+			candidates[swap] = tmp;
+		}
+		
+		int[] attributes = new int[this.subspaceSize + 1];
+		System.arraycopy(candidates, 0, attributes, 0, this.subspaceSize);
+		Arrays.sort(attributes, 0, this.subspaceSize);
+		attributes[this.subspaceSize] = classIndex;
+		
+		Instances header = ProjectedInstance.header(trainData, attributes, 0);
+		c.setProjection(attributes, header);
+		
+		Instances sample = new Instances(header, numRows);
+		for(int r = 0; r < numRows; ++r){
+			int row = rows == null ? rand.nextInt(trainData.numInstances()) : rows[rand.nextInt(rows.length)];
+			sample.add(new ProjectedInstance(trainData.get(row), attributes));
+		}
+		
+		return sample;
+	}
+	
+	/**
+	 * Builds the ensemble from weak classifiers that have already been trained and
+	 * weighted on the given data, e.g. a pool shared between several configurations. 
+	 * Node outputs and edge scores set with setNodeOutputs() and setEdgeScores() are 
+	 * reused rather than recomputed.
+	 * 
+	 * @param data
+	 *   The data the nodes were weighted on
+	 * @param nodes
+	 *   Trained weak classifier nodes, one for each position in the pool
+	 * @throws Exception
+	 */
+	public void buildFromNodes(Instances data, List<ClassifierNode> nodes) throws Exception{
+		
+		if(nodes.size() != this.poolSize()){
+			throw new IllegalArgumentException("Expected " + this.poolSize() + " nodes, got " + nodes.size());
+		}
+		
+		this.trainData = data;
+		this.header = new Instances(data, 0);
+		this.numRefreshed = 0;
+		this.pool = new Vector<ClassifierNode>(nodes);
+		
+		//Sparse and approximate graphs are remade when nodes are replaced, keep the
+		//pairs fit so that only the new pairs need to be fit then
+		if(this.edgeScores == null && (this.hasSparseEdges() || this.exactEdgesPerNode > 0)){
+			this.edgeScores = new EdgeScoreCache();
+		}
+		
+		if(this.edgeWeights != null){
+			this.edgeWeights.close();
+			this.edgeWeights = null;
+		}
+		
+		graph = new DefaultDirectedWeightedGraph<ClassifierNode,ClassifierEdge>(ClassifierEdge.class);
+		
+		src = new ClassifierNode("s");
+		sink = new ClassifierNode("t");
+		
+		graph.addVertex(src);
+		graph.addVertex(sink);
+		
+		for(int i = 0; i < nodes.size(); ++i){
+			ClassifierNode c = nodes.get(i);
+			
 			//Add to graph representation
 			graph.addVertex(c);
-
-			graph.addEdge(src, c);
-			graph.setEdgeWeight(graph.getEdge(src, c), 1.0 - c.getWeight());
-
-			graph.addEdge(c, sink);
-			graph.setEdgeWeight(graph.getEdge(c, sink), b);
+			this.connectToEnds(i, c);
 		}
 		
 		makeEdges();
 		findShortestPath();
 	}
 	
+	/**
+	 * Cross-validates a model with this model's settings, sharing one pool of weak 
+	 * classifiers between the folds, see PoolCrossValidation. This model is not built.
+	 * The fixed proportion p is used, since a proportion chosen automatically would 
+	 * have seen the test rows.
+	 * 
+	 * @param data
+	 *   Data to cross-validate on
+	 * @param numFolds
+	 *   Number of folds
+	 * @param rand
+	 *   Random generator used to split the data and draw the samples
+	 * @return
+	 *   Evaluation of the predictions of each fold's model on its test rows
+	 * @throws Exception
+	 */
+	public Evaluation crossValidate(Instances data, int numFolds, Random rand) throws Exception{
+		return new PoolCrossValidation().crossValidate(this, data, numFolds, rand);
+	}
+	
+	/**
+	 * Adds the edges between a weak classifier and the source and sink.
+	 * 
+	 * @param i
+	 *   Index of the classifier in the pool
+	 * @param c
+	 *   The classifier's node, already in the graph
+	 */
+	protected void connectToEnds(int i, ClassifierNode c){
+		
+		graph.addEdge(src, c);
+		graph.setEdgeWeight(graph.getEdge(src, c), 1.0 - c.getWeight());
+
+		graph.addEdge(c, sink);
+		graph.setEdgeWeight(graph.getEdge(c, sink), b);
+	}
+	
+	/**
+	 * Number of weak classifiers in the model.
+	 */
+	public int poolSize(){
+		return this.size;
+	}
+	
 	/**
 	 * Creates edges connecting all classifier nodes to each other. The weights assigned
 	 * to each edge are determined by the marginal increase in error associated with
@@ -152,57 +759,1012 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	 */
 	protected void makeEdges() throws Exception{
 		
-		Vector<ClassifierEdge> curEdge = new Vector<ClassifierEdge>(1);
-		curEdge.add(null);
-		curEdge.add(null);
+		Vector<ClassifierNode> vertices = new Vector<ClassifierNode>(this.pool);
+		
+		if(this.hasSparseEdges()){
+			this.makeSparseEdges(vertices);
+			return;
+		}
+		
+		if(this.edgeStore != null){
+			this.makeStoredEdges(vertices);
+			return;
+		}
 		
-		Vector<ClassifierNode> vertices = new Vector<ClassifierNode>();
-		vertices.addAll(this.graph.vertexSet());
-		vertices.remove(this.src);
-		vertices.remove(this.sink);
+		int numPairs = this.size*(this.size - 1)/2;
+		int[] first = new int[numPairs];
+		int[] second = new int[numPairs];
 		
+		int k = 0;
 		for(int i = 0; i < this.size; ++i){
-			
-			ClassifierNode ci = vertices.get(i);
-			
 			for(int j = i + 1; j < this.size; ++j){
-				ClassifierNode cj = vertices.get(j);
-				
-				this.graph.addEdge(ci, cj);
-				this.graph.addEdge(cj, ci);
+				first[k] = i;
+				second[k] = j;
+				++k;
+			}
+		}
+		
+		double[] acc = this.scorePairs(vertices, first, second);
+		
+		for(k = 0; k < numPairs; ++k){
+			ClassifierNode ci = vertices.get(first[k]);
+			ClassifierNode cj = vertices.get(second[k]);
+			
+			this.graph.addEdge(ci, cj);
+			this.graph.addEdge(cj, ci);
+			
+			System.out.println("Edge: " + ci + " -> " + cj + ": acc = " + acc[k] + ", w = " + ((1.0 - acc[k]) - (1.0 - ci.getWeight())));
+			System.out.println("Edge: " + cj + " -> " + ci + ": acc = " + acc[k] + ", w = " + ((1.0 - acc[k]) - (1.0 - cj.getWeight())));
+			
+			this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - acc[k]) - (1.0 - ci.getWeight()));
+			this.graph.setEdgeWeight(graph.getEdge(cj, ci), (1.0 - acc[k]) - (1.0 - cj.getWeight()));
+		}
+		
+	}
+	
+	/**
+	 * Scores every pair of classifier nodes like makeEdges(), but writes the edge 
+	 * weights to the memory mapped edgeStore instead of adding edges to the graph. 
+	 * Pairs are scored in batches of whole rows of at least STORE_BATCH_PAIRS pairs, 
+	 * all on the same workers if there are any, so no per pair arrays are held for
+	 * the whole graph. The pairs are not kept in the edge scores, so a resumed build
+	 * scores them again. When edges are approximated, the pairs to fit exactly are 
+	 * chosen node by node first, see storeApproximatePairs().
+	 * 
+	 * @param vertices
+	 *   Weak classifier nodes
+	 * @throws Exception
+	 */
+	protected void makeStoredEdges(List<ClassifierNode> vertices) throws Exception{
+		
+		int n = vertices.size();
+		
+		if(this.edgeWeights != null){
+			this.edgeWeights.close();
+		}
+		this.edgeWeights = new EdgeWeightMatrix(this.edgeStore, n);
+		
+		if(this.exactEdgesPerNode > 0){
+			this.storeApproximatePairs(vertices);
+		}
+		else{
+			//Every pair is written to the edge store, so none are kept in memory or checkpointed
+			this.edgeScores = null;
+			
+			if(this.numWorkers > 0){
+				NodeOutputCache cached = this.outputPrecision != NodeOutputCache.PRECISION_NONE ? this.getOutputs(vertices) : null;
+				this.workers = new EdgeScoringCoordinator(this.numWorkers, this.getWorkerLauncher());
+				this.workers.setWarmStart(this.warmStartEdges);
+				this.workers.open(vertices, this.trainData, cached);
+			}
+			
+			try{
+				for(int i = 0; i < n - 1; ){
+					
+					//Whole rows i..end-1, at least STORE_BATCH_PAIRS pairs unless the rows run out
+					int end = i;
+					long numPairs = 0;
+					while(end < n - 1 && (numPairs < STORE_BATCH_PAIRS || end == i)){
+						numPairs += n - end - 1;
+						++end;
+					}
+					
+					int[] first = new int[(int) numPairs];
+					int[] second = new int[first.length];
+					
+					for(int r = i, k = 0; r < end; ++r){
+						for(int j = r + 1; j < n; ++j, ++k){
+							first[k] = r;
+							second[k] = j;
+						}
+					}
+					
+					this.storePairs(vertices, first, second);
+					i = end;
+				}
+			}
+			finally{
+				if(this.workers != null){
+					this.workers.close();
+					this.workers = null;
+				}
+			}
+		}
+		
+		if(this.debug){
+			System.out.println("Stored " + ((long) n*(n - 1)) + " edge weights in " + this.edgeStore);
+		}
+	}
+	
+	/**
+	 * Scores the pairs of nodes and writes the weights of their edges, in both 
+	 * directions, to edgeWeights.
+	 */
+	protected void storePairs(List<ClassifierNode> vertices, int[] first, int[] second) throws Exception{
+		
+		double[] acc = this.scorePairs(vertices, first, second);
+		
+		for(int k = 0; k < first.length; ++k){
+			this.edgeWeights.set(first[k], second[k], (1.0 - acc[k]) - (1.0 - vertices.get(first[k]).getWeight()));
+			this.edgeWeights.set(second[k], first[k], (1.0 - acc[k]) - (1.0 - vertices.get(second[k]).getWeight()));
+		}
+	}
+	
+	/**
+	 * Scores every pair of nodes as approximatePairs() does and writes the weights of
+	 * their edges to edgeWeights, without holding arrays over every pair. The
+	 * exactEdgesPerNode most promising partners of each node are found a node at a 
+	 * time, in the same order approximatePairs() ranks them, and only those pairs are
+	 * fit. The weights are then written a row at a time.
+	 * 
+	 * @param vertices
+	 *   Weak classifier nodes
+	 * @throws Exception
+	 */
+	protected void storeApproximatePairs(List<ClassifierNode> vertices) throws Exception{
+		
+		NodeOutputCache cached = this.getOutputs(vertices);
+		int n = vertices.size();
+		
+		int[] cacheIndex = new int[n];
+		for(int i = 0; i < n; ++i){
+			cacheIndex[i] = cached.indexOf(vertices.get(i));
+		}
+		
+		//Pairs leaving each node, in both directions if pairs define both edges
+		HashMap<Long, Integer> pairIndex = new HashMap<Long, Integer>();
+		Vector<Integer> firstList = new Vector<Integer>();
+		Vector<Integer> secondList = new Vector<Integer>();
+		
+		for(int i = 0; i < n; ++i){
+			int[] partners = nearestPartners(cached, cacheIndex, i, this.exactEdgesPerNode, this.hasReverseEdges() ? 0 : i + 1);
+			
+			for(int m = 0; m < partners.length; ++m){
+				Long key = pairKey(i, partners[m]);
 				
-				ClassifierEdge cicj = graph.getEdge(ci, cj);
-				ClassifierEdge cjsink = graph.getEdge(cj, sink);
-				curEdge.set(0, cicj);
-				curEdge.set(1, cjsink);
+				if(!pairIndex.containsKey(key)){
+					pairIndex.put(key, firstList.size());
+					firstList.add(Math.min(i, partners[m]));
+					secondList.add(Math.max(i, partners[m]));
+				}
+			}
+		}
+		
+		int[] first = new int[firstList.size()];
+		int[] second = new int[secondList.size()];
+		for(int m = 0; m < first.length; ++m){
+			first[m] = firstList.get(m);
+			second[m] = secondList.get(m);
+		}
+		
+		double[] exactAcc = this.scorePairsExactly(vertices, first, second);
+		
+		for(int i = 0; i < n - 1; ++i){
+			ClassifierNode ci = vertices.get(i);
+			
+			for(int j = i + 1; j < n; ++j){
+				ClassifierNode cj = vertices.get(j);
 				
-				PathClassifier pc = new PathClassifier(curEdge);
-				pc.buildClassifier(trainData);
-				double acc = pc.evaluateOnData(trainData);
+				Integer m = pairIndex.get(pairKey(i, j));
+				double acc = m != null ? exactAcc[m] : Math.max(ci.getWeight(), cj.getWeight());
 				
-				System.out.println("Edge: " + ci + " -> " + cj + ": acc = " + acc + ", w = " + ((1.0 - acc) - (1.0 - ci.getWeight())));
-				System.out.println("Edge: " + cj + " -> " + ci + ": acc = " + acc + ", w = " + ((1.0 - acc) - (1.0 - cj.getWeight())));
+				this.edgeWeights.set(i, j, (1.0 - acc) - (1.0 - ci.getWeight()));
+				this.edgeWeights.set(j, i, (1.0 - acc) - (1.0 - cj.getWeight()));
+			}
+		}
+		
+		if(this.debug){
+			System.out.println("Fit " + first.length + " of " + ((long) n*(n - 1)/2) + " edges exactly");
+		}
+	}
+	
+	/**
+	 * Creates edges from each classifier node to only its numNeighbours most promising
+	 * partners. Partners are ranked by the double fault rate of the two nodes on the 
+	 * training data, with ties broken by higher disagreement, so the cost of choosing 
+	 * them is one pass over the packed node predictions per pair. Only the chosen
+	 * pairs are fit, and the graph holds n*numNeighbours edges rather than n^2.
+	 * 
+	 * @param vertices
+	 *   Weak classifier nodes
+	 * @throws Exception
+	 */
+	protected void makeSparseEdges(List<ClassifierNode> vertices) throws Exception{
+		
+		NodeOutputCache cached = this.getOutputs(vertices);
+		int n = vertices.size();
+		int k = this.numNeighbours;
+		
+		int[] cacheIndex = new int[n];
+		for(int i = 0; i < n; ++i){
+			cacheIndex[i] = cached.indexOf(vertices.get(i));
+		}
+		
+		int[][] partners = new int[n][];
+		for(int i = 0; i < n; ++i){
+			partners[i] = nearestPartners(cached, cacheIndex, i, k);
+		}
+		
+		//Score each unordered pair once, even when both nodes chose each other
+		HashMap<Long, Integer> pairIndex = new HashMap<Long, Integer>();
+		Vector<Integer> firstList = new Vector<Integer>();
+		Vector<Integer> secondList = new Vector<Integer>();
+		
+		for(int i = 0; i < n; ++i){
+			for(int m = 0; m < partners[i].length; ++m){
+				int j = partners[i][m];
+				Long key = pairKey(i, j);
+				
+				if(!pairIndex.containsKey(key)){
+					pairIndex.put(key, firstList.size());
+					firstList.add(Math.min(i, j));
+					secondList.add(Math.max(i, j));
+				}
+			}
+		}
+		
+		int[] first = new int[firstList.size()];
+		int[] second = new int[secondList.size()];
+		for(int m = 0; m < first.length; ++m){
+			first[m] = firstList.get(m);
+			second[m] = secondList.get(m);
+		}
+		
+		double[] acc = this.scorePairs(vertices, first, second);
+		
+		for(int i = 0; i < n; ++i){
+			ClassifierNode ci = vertices.get(i);
+			
+			for(int m = 0; m < partners[i].length; ++m){
+				ClassifierNode cj = vertices.get(partners[i][m]);
+				double a = acc[pairIndex.get(pairKey(i, partners[i][m]))];
 				
-				this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - acc) - (1.0 - ci.getWeight()));
-				this.graph.setEdgeWeight(graph.getEdge(cj, ci), (1.0 - acc) - (1.0 - cj.getWeight()));
+				this.graph.addEdge(ci, cj);
+				this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - a) - (1.0 - ci.getWeight()));
+			}
+		}
+		
+		if(this.debug){
+			System.out.println("Sparse graph: " + n + " nodes, " + (this.graph.edgeSet().size() - 2*n) + " node edges, " + first.length + " pairs fit");
+		}
+	}
+	
+	/**
+	 * Whether only some pairs of nodes are connected, chosen by comparing each node to
+	 * the rest of the pool, here each node's numNeighbours most promising partners.
+	 * Such graphs are remade rather than updated when nodes are replaced.
+	 */
+	protected boolean hasSparseEdges(){
+		return this.numNeighbours > 0 && this.numNeighbours < this.size - 1;
+	}
+	
+	/**
+	 * Finds the k nodes with the lowest double fault rate with node i.
+	 * 
+	 * @param outputs
+	 *   Cached outputs of every node
+	 * @param cacheIndex
+	 *   Position in outputs of each candidate node
+	 * @param i
+	 *   Index of the node to find partners for, among the candidates
+	 * @param k
+	 *   Number of partners to find
+	 * @return
+	 *   Indices of the partners among the candidates, best first
+	 */
+	protected static int[] nearestPartners(NodeOutputCache outputs, int[] cacheIndex, int i, int k){
+		return nearestPartners(outputs, cacheIndex, i, k, 0);
+	}
+	
+	/**
+	 * Finds the k nodes from index from on with the lowest double fault rate with 
+	 * node i, ties going to the lower index.
+	 * 
+	 * @param from
+	 *   Lowest index of a candidate partner
+	 * @see #nearestPartners(NodeOutputCache, int[], int, int)
+	 */
+	protected static int[] nearestPartners(NodeOutputCache outputs, int[] cacheIndex, int i, int k, int from){
+		
+		int n = cacheIndex.length;
+		k = Math.max(0, Math.min(k, n - from - (i >= from ? 1 : 0)));
+		
+		int[] best = new int[k];
+		double[] bestFault = new double[k];
+		double[] bestDis = new double[k];
+		int found = 0;
+		
+		for(int j = from; j < n; ++j){
+			if(j == i){
+				continue;
+			}
+			
+			double fault = outputs.doubleFault(cacheIndex[i], cacheIndex[j]);
+			double dis = outputs.disagreement(cacheIndex[i], cacheIndex[j]);
+			
+			//Insertion into the sorted list of the best k seen so far
+			int pos = found;
+			while(pos > 0 && (fault < bestFault[pos - 1] || (fault == bestFault[pos - 1] && dis > bestDis[pos - 1]))){
+				--pos;
+			}
+			if(pos >= k){
+				continue;
+			}
+			
+			int end = Math.min(found, k - 1);
+			System.arraycopy(best, pos, best, pos + 1, end - pos);
+			System.arraycopy(bestFault, pos, bestFault, pos + 1, end - pos);
+			System.arraycopy(bestDis, pos, bestDis, pos + 1, end - pos);
+			
+			best[pos] = j;
+			bestFault[pos] = fault;
+			bestDis[pos] = dis;
+			found = Math.min(found + 1, k);
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Key identifying the unordered pair of nodes i and j.
+	 */
+	static Long pairKey(int i, int j){
+		return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+	}
+	
+	/**
+	 * Computes the training accuracy of the two node path first[k] -> second[k] for
+	 * each requested pair of nodes. If a number of exact edges per node has been set,
+	 * only the most promising pairs are fit and the rest are estimated.
+	 * 
+	 * @param nodes
+	 *   Weak classifier nodes, indexed by the values in first and second
+	 * @param first
+	 *   Index of the first node of each pair
+	 * @param second
+	 *   Index of the second node of each pair
+	 * @return
+	 *   Accuracy on the training data of each pair
+	 * @throws Exception
+	 */
+	protected double[] scorePairs(List<ClassifierNode> nodes, int[] first, int[] second) throws Exception{
+		
+		if(this.exactEdgesPerNode > 0){
+			return this.approximatePairs(nodes, first, second);
+		}
+		
+		return this.scorePairsExactly(nodes, first, second);
+	}
+	
+	/**
+	 * Fits and evaluates the path for every requested pair of nodes. If edge scores
+	 * have been set, pairs already in them are reused and new pairs are added.
+	 * 
+	 * @see #scorePairs(List, int[], int[])
+	 */
+	protected double[] scorePairsExactly(List<ClassifierNode> nodes, int[] first, int[] second) throws Exception{
+		
+		if(this.edgeScores == null){
+			return this.fitPairs(nodes, first, second);
+		}
+		
+		double[] acc = new double[first.length];
+		boolean[] found = new boolean[first.length];
+		int numMissing = 0;
+		
+		for(int k = 0; k < first.length; ++k){
+			Double a = this.edgeScores.get(nodes.get(first[k]), nodes.get(second[k]));
+			if(a != null){
+				acc[k] = a;
+				found[k] = true;
+			}
+			else{
+				++numMissing;
+			}
+		}
+		
+		int[] missingFirst = new int[numMissing];
+		int[] missingSecond = new int[numMissing];
+		for(int k = 0, m = 0; k < first.length; ++k){
+			if(!found[k]){
+				missingFirst[m] = first[k];
+				missingSecond[m] = second[k];
+				++m;
+			}
+		}
+		
+		boolean[] partial = new boolean[numMissing];
+		double[] fit = this.fitPairs(nodes, missingFirst, missingSecond, partial);
+		
+		//Abandoned races are not exact, so they are fit again when next needed
+		for(int k = 0, m = 0; k < first.length; ++k){
+			if(!found[k]){
+				acc[k] = fit[m];
+				if(!partial[m]){
+					this.edgeScores.put(nodes.get(first[k]), nodes.get(second[k]), acc[k]);
+				}
+				++m;
+			}
+		}
+		
+		if(this.checkpoint != null && numMissing > 0){
+			this.checkpointEdges(false);
+		}
+		
+		return acc;
+	}
+	
+	/**
+	 * Fits and evaluates the path for every requested pair of nodes. Pairs are fit 
+	 * in this JVM unless a number of workers has been set, in which case they are 
+	 * sharded across worker processes. In this JVM, pairs may be raced against the 
+	 * best pair out of the same node, see setRaceEdges().
+	 * 
+	 * @see #scorePairs(List, int[], int[])
+	 */
+	protected double[] fitPairs(List<ClassifierNode> nodes, int[] first, int[] second) throws Exception{
+		return this.fitPairs(nodes, first, second, null);
+	}
+	
+	/**
+	 * Fits and evaluates the path for every requested pair of nodes, as 
+	 * fitPairs(List, int[], int[]) does, and marks the pairs whose race was abandoned.
+	 * 
+	 * @param partial
+	 *   Set to whether the accuracy of each pair was measured on only some rows, 
+	 *   may be null
+	 * @throws IllegalStateException
+	 *   If edges are raced and a number of workers has been set
+	 */
+	protected double[] fitPairs(List<ClassifierNode> nodes, int[] first, int[] second, boolean[] partial) throws Exception{
+		
+		if(first.length == 0){
+			return new double[0];
+		}
+		
+		if(this.raceEdges && this.numWorkers > 0){
+			throw new IllegalStateException("Edges cannot be raced by workers, disable racing or set no workers");
+		}
+		
+		NodeOutputCache cached = null;
+		if(this.outputPrecision != NodeOutputCache.PRECISION_NONE){
+			cached = this.getOutputs(nodes);
+		}
+		
+		if(this.workers != null){
+			return this.workers.scorePairs(first, second);
+		}
+		
+		if(this.numWorkers > 0){
+			EdgeScoringCoordinator coordinator = new EdgeScoringCoordinator(this.numWorkers, this.getWorkerLauncher());
+			coordinator.setWarmStart(this.warmStartEdges);
+			return coordinator.scorePairs(nodes, this.trainData, first, second, cached);
+		}
+		
+		double[] acc = new double[first.length];
+		
+		//Fit of the last edge leaving each node, to warm start the next one from
+		LogisticFit[] fits = new LogisticFit[nodes.size()];
+		
+		EdgeRace race = null;
+		double[] incumbent = null;
+		int[] order = new int[first.length];
+		for(int k = 0; k < order.length; ++k){
+			order[k] = k;
+		}
+		
+		if(this.raceEdges){
+			race = new EdgeRace(this.trainData, cached, this.buildRandom());
+			race.setConfidence(this.raceConfidence);
+			race.setWekaLogistic(!this.warmStartEdges);
+			
+			incumbent = new double[nodes.size()];
+			Arrays.fill(incumbent, -1.0);
+			
+			//Race the pairs out of each node with the most accurate partners first, so a strong incumbent is set early
+			double[] key = new double[first.length];
+			for(int k = 0; k < key.length; ++k){
+				key[k] = 4.0*first[k] + (1.0 - nodes.get(second[k]).getWeight());
+			}
+			order = Utils.stableSort(key);
+		}
+		
+		for(int m = 0; m < order.length; ++m){
+			int k = order[m];
+			
+			LogisticFit fit = null;
+			if(this.warmStartEdges || race != null){
+				if(fits[first[k]] == null){
+					fits[first[k]] = new LogisticFit();
+				}
+				fit = fits[first[k]];
+			}
+			
+			if(race != null){
+				//A pair is also the edge out of its second node if edges run both ways, so it must lose to both incumbents
+				double toBeat = this.hasReverseEdges() ? Math.min(incumbent[first[k]], incumbent[second[k]]) : incumbent[first[k]];
+				acc[k] = race.score(nodes.get(first[k]), nodes.get(second[k]), fit, toBeat);
+				
+				if(race.wasAbandoned()){
+					if(partial != null){
+						partial[k] = true;
+					}
+					continue;
+				}
+				
+				incumbent[first[k]] = Math.max(incumbent[first[k]], acc[k]);
+				if(this.hasReverseEdges()){
+					incumbent[second[k]] = Math.max(incumbent[second[k]], acc[k]);
+				}
+			}
+			else{
+				acc[k] = PathClassifier.scorePair(nodes.get(first[k]), nodes.get(second[k]), this.trainData, cached, fit);
+			}
+			
+			if(this.checkpoint != null && this.edgeScores != null){
+				this.edgeScores.put(nodes.get(first[k]), nodes.get(second[k]), acc[k]);
+				this.checkpointEdges(false);
+			}
+		}
+		
+		if(this.warmStartEdges || race != null){
+			this.edgeFitIterations = 0;
+			for(int i = 0; i < fits.length; ++i){
+				this.edgeFitIterations += fits[i] != null ? fits[i].getTotalIterations() : 0;
+			}
+		}
+		
+		return acc;
+	}
+	
+	/**
+	 * Saves the pairs fit so far to the build checkpoint, if the checkpoint interval 
+	 * has passed since the last save.
+	 * 
+	 * @param force
+	 *   Save regardless of the interval
+	 * @throws Exception
+	 */
+	protected void checkpointEdges(boolean force) throws Exception{
+		
+		long now = System.currentTimeMillis();
+		
+		if(force || now - this.lastCheckpoint >= this.checkpointInterval){
+			this.checkpoint.saveEdgeScores(this.edgeScores);
+			this.lastCheckpoint = now;
+		}
+	}
+	
+	/**
+	 * Scores pairs using the diversity of the nodes' predictions on the training data.
+	 * The exactEdgesPerNode pairs leaving each node with the lowest double fault rate
+	 * (ties broken by higher disagreement) are fit exactly. The remaining pairs are 
+	 * assumed to be no more accurate than the better of their two nodes.
+	 * 
+	 * @see #scorePairs(List, int[], int[])
+	 */
+	protected double[] approximatePairs(List<ClassifierNode> nodes, int[] first, int[] second) throws Exception{
+		
+		NodeOutputCache outputs = this.getOutputs(nodes);
+		
+		//Diversity of every pair, computed from the packed predictions
+		final double[] doubleFault = new double[first.length];
+		final double[] disagreement = new double[first.length];
+		
+		for(int k = 0; k < first.length; ++k){
+			int i = outputs.indexOf(nodes.get(first[k]));
+			int j = outputs.indexOf(nodes.get(second[k]));
+			doubleFault[k] = outputs.doubleFault(i, j);
+			disagreement[k] = outputs.disagreement(i, j);
+		}
+		
+		//Candidate pairs leaving each node
+		Vector<Vector<Integer>> outgoing = new Vector<Vector<Integer>>(nodes.size());
+		for(int i = 0; i < nodes.size(); ++i){
+			outgoing.add(new Vector<Integer>());
+		}
+		for(int k = 0; k < first.length; ++k){
+			outgoing.get(first[k]).add(k);
+			if(this.hasReverseEdges()){
+				outgoing.get(second[k]).add(k);
+			}
+		}
+		
+		Comparator<Integer> mostPromising = new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				int c = Double.compare(doubleFault[a], doubleFault[b]);
+				return c != 0 ? c : Double.compare(disagreement[b], disagreement[a]);
+			}
+		};
+		
+		boolean[] exact = new boolean[first.length];
+		int numExact = 0;
+		
+		for(int i = 0; i < nodes.size(); ++i){
+			Vector<Integer> candidates = outgoing.get(i);
+			Collections.sort(candidates, mostPromising);
+			
+			for(int m = 0; m < Math.min(this.exactEdgesPerNode, candidates.size()); ++m){
+				int k = candidates.get(m);
+				if(!exact[k]){
+					exact[k] = true;
+					++numExact;
+				}
+			}
+		}
+		
+		int[] exactFirst = new int[numExact];
+		int[] exactSecond = new int[numExact];
+		for(int k = 0, m = 0; k < first.length; ++k){
+			if(exact[k]){
+				exactFirst[m] = first[k];
+				exactSecond[m] = second[k];
+				++m;
+			}
+		}
+		
+		double[] exactAcc = this.scorePairsExactly(nodes, exactFirst, exactSecond);
+		
+		double[] acc = new double[first.length];
+		for(int k = 0, m = 0; k < first.length; ++k){
+			if(exact[k]){
+				acc[k] = exactAcc[m++];
+			}
+			else{
+				acc[k] = Math.max(nodes.get(first[k]).getWeight(), nodes.get(second[k]).getWeight());
+			}
+		}
+		
+		if(this.debug){
+			System.out.println("Fit " + numExact + " of " + first.length + " edges exactly");
+		}
+		
+		return acc;
+	}
+	
+	/**
+	 * Gets the outputs of the weak classifiers on the training data, applying them 
+	 * and caching the results at outputPrecision unless outputs for these nodes are
+	 * already cached.
+	 * 
+	 * @param nodes
+	 *   Weak classifier nodes
+	 * @return
+	 *   Cached outputs of the nodes
+	 * @throws Exception
+	 */
+	protected NodeOutputCache getOutputs(List<ClassifierNode> nodes) throws Exception{
+		
+		if(this.outputs == null || this.outputs.getPrecision() != this.outputPrecision || !this.outputs.covers(nodes, this.trainData)){
+			this.outputs = new NodeOutputCache(nodes, this.trainData, this.outputPrecision);
+			
+			if(this.debug && this.outputs.hasProbabilities()){
+				System.out.println("Cached node outputs at " + this.outputPrecision + " bits, error <= " + this.outputs.getMaxError() + " per output");
+			}
+		}
+		
+		return this.outputs;
+	}
+	
+	/**
+	 * Whether the pairs given to scorePairs() are used as edges in both directions.
+	 * 
+	 * @return
+	 *   True if pair (i, j) also defines the edge j -> i
+	 */
+	protected boolean hasReverseEdges(){
+		return true;
+	}
+	
+	/**
+	 * Determines final classification model using shortest path search through the graph 
+	 * representation of the ensemble of weak classifiers.
+	 * 
+	 * @throws Exception 
+	 */
+	protected void findShortestPath() throws Exception{
+		List<ClassifierEdge> edges;
+		if(this.edgeWeights != null){
+			this.search = null;
+			edges = this.findStoredPath();
+		}
+		else if(this.numNeighbours > 0){
+			this.search = new SparsePathSearch<ClassifierNode, ClassifierEdge>(this.graph);
+			edges = this.search.findPathBetween(this.src, this.sink);
+		}
+		else{
+			this.search = null;
+			edges = BellmanFordShortestPath.findPathBetween(this.graph, this.src, this.sink);
+		}
+		edges.remove(0);
+		edges.remove(edges.size()-1);
+		System.out.println(edges);
+		this.path = new PathClassifier(edges);
+		this.path.buildClassifier(trainData);
+		
+		this.compileScorers();
+	}
+	
+	/**
+	 * Finds the shortest path when the edge weights are kept in edgeWeights. The path
+	 * search streams over the rows of the stored matrix, and only the edges on the 
+	 * path are added to the graph.
+	 * 
+	 * @return
+	 *   Edges on the path, from the source to the sink
+	 */
+	protected List<ClassifierEdge> findStoredPath(){
+		
+		int n = this.pool.size();
+		double[] fromSrc = new double[n];
+		double[] toSink = new double[n];
+		
+		for(int i = 0; i < n; ++i){
+			ClassifierEdge e = this.graph.getEdge(this.src, this.pool.get(i));
+			fromSrc[i] = e != null ? this.graph.getEdgeWeight(e) : Double.NaN;
+			
+			e = this.graph.getEdge(this.pool.get(i), this.sink);
+			toSink[i] = e != null ? this.graph.getEdgeWeight(e) : Double.NaN;
+		}
+		
+		//As many edges as a search of the whole graph, source and sink included
+		int[] walk = this.edgeWeights.findPath(fromSrc, toSink, n + 1);
+		if(walk == null){
+			return null;
+		}
+		
+		Vector<ClassifierEdge> edges = new Vector<ClassifierEdge>(walk.length + 1);
+		edges.add(this.graph.getEdge(this.src, this.pool.get(walk[0])));
+		
+		for(int k = 1; k < walk.length; ++k){
+			ClassifierNode ci = this.pool.get(walk[k - 1]);
+			ClassifierNode cj = this.pool.get(walk[k]);
+			
+			ClassifierEdge e = this.graph.getEdge(ci, cj);
+			if(e == null){
+				e = this.graph.addEdge(ci, cj);
+				this.graph.setEdgeWeight(e, this.edgeWeights.get(walk[k - 1], walk[k]));
+			}
+			edges.add(e);
+		}
+		
+		edges.add(this.graph.getEdge(this.pool.get(walk[walk.length - 1]), this.sink));
+		
+		return edges;
+	}
+	
+	/**
+	 * Retrains the weak classifiers at the given positions in the pool on new samples
+	 * of the training data, and replaces them in the model.
+	 * 
+	 * @param positions
+	 *   Positions in the pool of the classifiers to retrain
+	 * @return
+	 *   The new nodes, in the order of positions
+	 * @throws Exception
+	 * @see #replaceNodes(int[], List)
+	 */
+	public List<ClassifierNode> refreshNodes(int... positions) throws Exception{
+		
+		//Continue the build's stream of sample seeds past those already used, so refreshes
+		//of a seeded model are repeatable and never redraw a sample
+		Random rand = this.buildRandom();
+		for(int k = 0; k < this.poolSize() + this.numRefreshed; ++k){
+			rand.nextInt();
+		}
+		this.numRefreshed += positions.length;
+		
+		Vector<ClassifierNode> replacements = new Vector<ClassifierNode>(positions.length);
+		for(int m = 0; m < positions.length; ++m){
+			replacements.add(this.trainNode(positions[m], rand.nextInt()));
+		}
+		
+		this.replaceNodes(positions, replacements);
+		
+		return replacements;
+	}
+	
+	/**
+	 * Replaces weak classifiers in a built model without rebuilding the rest of it. 
+	 * Only the pairs containing a replaced node are scored, and the path search is 
+	 * run on the snapshot of the graph from the previous search, updated for the 
+	 * replaced nodes. The logistic regression is only refit if the path changes.
+	 * 
+	 * Sparse and approximate graphs choose which pairs to fit by comparing each node
+	 * to the whole pool, so their node edges are all remade, but pairs already fit are 
+	 * taken from the edge scores rather than fit again.
+	 * 
+	 * @param positions
+	 *   Positions in the pool of the nodes to replace
+	 * @param replacements
+	 *   Nodes trained and weighted on the training data, one for each position
+	 * @throws Exception
+	 */
+	public void replaceNodes(int[] positions, List<ClassifierNode> replacements) throws Exception{
+		
+		if(this.path == null){
+			throw new IllegalStateException("The model must be built before nodes are replaced");
+		}
+		if(this.edgeStore != null && this.edgeWeights == null && !this.hasSparseEdges()){
+			throw new IllegalStateException("Stored edge weights are not open, the model must be rebuilt");
+		}
+		if(positions.length != replacements.size()){
+			throw new IllegalArgumentException("Expected " + positions.length + " nodes, got " + replacements.size());
+		}
+		
+		boolean[] changed = new boolean[this.pool.size()];
+		for(int m = 0; m < positions.length; ++m){
+			if(changed[positions[m]]){
+				throw new IllegalArgumentException("Position " + positions[m] + " is replaced more than once");
+			}
+			changed[positions[m]] = true;
+		}
+		
+		//IDs identify nodes in the graph and the caches
+		for(int m = 0; m < positions.length; ++m){
+			for(int j = 0; j < this.pool.size(); ++j){
+				if(!changed[j] && this.pool.get(j).equals(replacements.get(m))){
+					throw new IllegalArgumentException("Node ID " + replacements.get(m).getID() + " is already in use");
+				}
+			}
+		}
+		
+		ClassifierNode[] old = new ClassifierNode[positions.length];
+		
+		for(int m = 0; m < positions.length; ++m){
+			int i = positions[m];
+			ClassifierNode c = replacements.get(m);
+			old[m] = this.pool.get(i);
+			
+			if(this.edgeScores != null){
+				this.edgeScores.remove(old[m]);
+			}
+			if(this.outputs != null && this.outputs.covers(Collections.singletonList(old[m]), this.trainData)){
+				this.outputs.replace(old[m], c, this.trainData);
+			}
+			
+			this.graph.removeVertex(old[m]);
+			this.graph.addVertex(c);
+			this.connectToEnds(i, c);
+			this.pool.set(i, c);
+		}
+		
+		SparsePathSearch<ClassifierNode, ClassifierEdge> updated = this.search;
+		
+		if(this.exactEdgesPerNode == 0 && !this.hasSparseEdges()){
+			this.connectNodes(changed);
+			
+			if(updated != null){
+				updated.replaceVertices(Arrays.asList(old), replacements);
+			}
+		}
+		else{
+			this.removeNodeEdges();
+			this.makeEdges();
+			updated = null;
+		}
+		
+		if(updated == null && this.edgeWeights == null){
+			updated = new SparsePathSearch<ClassifierNode, ClassifierEdge>(this.graph);
+		}
+		
+		this.updateShortestPath(updated);
+	}
+	
+	/**
+	 * Creates the edges between the changed nodes and every other node they are 
+	 * paired with, as makeEdges() would.
+	 * 
+	 * @param changed
+	 *   Whether the node at each position in the pool has changed
+	 * @throws Exception
+	 */
+	protected void connectNodes(boolean[] changed) throws Exception{
+		
+		Vector<Integer> firstList = new Vector<Integer>();
+		Vector<Integer> secondList = new Vector<Integer>();
+		
+		for(int i = 0; i < changed.length; ++i){
+			for(int j = i + 1; j < changed.length; ++j){
+				if((changed[i] || changed[j]) && this.isPair(i, j)){
+					firstList.add(i);
+					secondList.add(j);
+				}
+			}
+		}
+		
+		int[] first = new int[firstList.size()];
+		int[] second = new int[secondList.size()];
+		for(int k = 0; k < first.length; ++k){
+			first[k] = firstList.get(k);
+			second[k] = secondList.get(k);
+		}
+		
+		double[] acc = this.scorePairs(this.pool, first, second);
+		
+		for(int k = 0; k < first.length; ++k){
+			ClassifierNode ci = this.pool.get(first[k]);
+			ClassifierNode cj = this.pool.get(second[k]);
+			
+			if(this.edgeWeights != null){
+				this.edgeWeights.set(first[k], second[k], (1.0 - acc[k]) - (1.0 - ci.getWeight()));
+				this.edgeWeights.set(second[k], first[k], (1.0 - acc[k]) - (1.0 - cj.getWeight()));
+				continue;
+			}
+			
+			this.graph.addEdge(ci, cj);
+			this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - acc[k]) - (1.0 - ci.getWeight()));
+			
+			if(this.hasReverseEdges()){
+				this.graph.addEdge(cj, ci);
+				this.graph.setEdgeWeight(graph.getEdge(cj, ci), (1.0 - acc[k]) - (1.0 - cj.getWeight()));
+			}
+		}
+		
+		if(this.debug){
+			System.out.println("Connected replaced nodes with " + first.length + " pairs");
+		}
+	}
+	
+	/**
+	 * Whether makeEdges() connects the nodes at positions i < j in the pool.
+	 */
+	protected boolean isPair(int i, int j){
+		return true;
+	}
+	
+	/**
+	 * Removes every edge between two weak classifier nodes, leaving the edges to the 
+	 * source and sink.
+	 */
+	protected void removeNodeEdges(){
+		
+		Vector<ClassifierEdge> nodeEdges = new Vector<ClassifierEdge>();
+		for(ClassifierEdge e : this.graph.edgeSet()){
+			if(this.graph.getEdgeSource(e) != this.src && this.graph.getEdgeTarget(e) != this.sink){
+				nodeEdges.add(e);
 			}
 		}
 		
+		this.graph.removeAllEdges(nodeEdges);
 	}
 	
 	/**
-	 * Determines final classification model using shortest path search through the graph 
-	 * representation of the ensemble of weak classifiers.
+	 * Finds the shortest path after nodes have been replaced. The current logistic 
+	 * regression is kept if the path still uses the same nodes.
 	 * 
-	 * @throws Exception 
+	 * @param updated
+	 *   Search over a snapshot of the current graph, null if the edge weights are
+	 *   stored in edgeWeights
+	 * @throws Exception
 	 */
-	protected void findShortestPath() throws Exception{
-		List<ClassifierEdge> edges = BellmanFordShortestPath.findPathBetween(this.graph, this.src, this.sink);
+	protected void updateShortestPath(SparsePathSearch<ClassifierNode, ClassifierEdge> updated) throws Exception{
+		
+		List<ClassifierEdge> edges = updated != null ? updated.findPathBetween(this.src, this.sink) : this.findStoredPath();
 		edges.remove(0);
 		edges.remove(edges.size()-1);
 		System.out.println(edges);
-		this.path = new PathClassifier(edges);
-		this.path.buildClassifier(trainData);
+		
+		this.search = updated;
+		
+		List<ClassifierNode> before = this.path.getNodes();
+		PathClassifier next = new PathClassifier(edges);
+		List<ClassifierNode> after = next.getNodes();
+		
+		boolean same = before.size() == after.size();
+		for(int i = 0; same && i < before.size(); ++i){
+			same = before.get(i) == after.get(i);
+		}
+		
+		if(same){
+			this.path.setPath(edges);
+			return;
+		}
+		
+		next.buildClassifier(trainData);
+		this.path = next;
+		
+		this.compileScorers();
 	}
 	
 	/**
@@ -227,6 +1789,21 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	 * @throws
 	 */
 	public double classifyInstance(Instance instance) throws Exception {
+		
+		if(this.predictionCache != null){
+			return Utils.maxIndex(this.distributionForInstance(instance));
+		}
+		
+		ConcurrentScorer concurrent = this.scorer;
+		if(concurrent != null){
+			return concurrent.classifyInstance(instance);
+		}
+		
+		CascadeScorer early = this.cascade;
+		if(early != null){
+			return early.classifyInstance(instance);
+		}
+		
 		return this.path.classifyInstance(instance);
 	}
 	
@@ -240,9 +1817,108 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	 * @throws
 	 */
 	public double[] distributionForInstance(Instance instance) throws Exception {
+		
+		PredictionCache cache = this.predictionCache;
+		if(cache == null){
+			return this.score(instance);
+		}
+		
+		PredictionCache.Key key = PredictionCache.key(instance, this.version);
+		double[] dist = cache.get(key);
+		if(dist == null){
+			dist = this.score(instance);
+			cache.put(key, dist);
+		}
+		
+		return dist;
+	}
+	
+	/**
+	 * Scores a data point with the compiled path, see distributionForInstance().
+	 */
+	double[] score(Instance instance) throws Exception {
+		
+		ConcurrentScorer concurrent = this.scorer;
+		if(concurrent != null){
+			return concurrent.distributionForInstance(instance);
+		}
+		
+		CascadeScorer early = this.cascade;
+		if(early != null){
+			return early.distributionForInstance(instance);
+		}
+		
 		return this.path.distributionForInstance(instance);
 	}
 	
+	/**
+	 * Gets class probabilities for a block of data points. With concurrent inference
+	 * (or telemetry) enabled, each node is applied to the whole block before moving
+	 * to the next, so every path node is applied to every data point and early exit
+	 * is not used. Otherwise the block is scored a data point at a time, as by
+	 * distributionForInstance(), with early exit if it is enabled.
+	 * 
+	 * @param instances
+	 *   Data points for which to predict class probabilities
+	 * @param n
+	 *   Number of data points in instances to score
+	 * @return
+	 *   Class probabilities of each data point, as from distributionForInstance()
+	 * @throws Exception
+	 */
+	public double[][] distributionsForInstances(Instance[] instances, int n) throws Exception {
+		
+		PredictionCache cache = this.predictionCache;
+		if(cache == null){
+			return this.score(instances, n);
+		}
+		
+		//Look up every row, then score the misses together
+		long v = this.version;
+		double[][] dists = new double[n][];
+		PredictionCache.Key[] keys = new PredictionCache.Key[n];
+		Instance[] missed = new Instance[n];
+		int[] missedRows = new int[n];
+		int m = 0;
+		
+		for(int r = 0; r < n; ++r){
+			keys[r] = PredictionCache.key(instances[r], v);
+			dists[r] = cache.get(keys[r]);
+			if(dists[r] == null){
+				missed[m] = instances[r];
+				missedRows[m++] = r;
+			}
+		}
+		
+		if(m > 0){
+			double[][] scored = this.score(missed, m);
+			for(int k = 0; k < m; ++k){
+				dists[missedRows[k]] = scored[k];
+				cache.put(keys[missedRows[k]], scored[k]);
+			}
+		}
+		
+		return dists;
+	}
+	
+	/**
+	 * Scores a block of data points with the compiled path, see distributionsForInstances().
+	 */
+	double[][] score(Instance[] instances, int n) throws Exception {
+		
+		ConcurrentScorer concurrent = this.scorer;
+		if(concurrent != null){
+			return concurrent.distributionsForInstances(instances, n);
+		}
+		
+		double[][] dists = new double[n][];
+		for(int r = 0; r < n; ++r){
+			dists[r] = this.score(instances[r]);
+		}
+		
+		return dists;
+	}
+	
 	/**
 	 * Returns the (weka) capabilities of this classifier. Identical to capabilities of 
 	 * weak classifiers.
@@ -250,7 +1926,12 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	public Capabilities getCapabilities() {
 		Capabilities caps = null;
 		try{
-			caps = AbstractClassifier.forName(this.classfierName, this.classArgs).getCapabilities();
+			caps = this.learnerFor(0).newClassifier().getCapabilities();
+			
+			//A mixed pool can only handle what all of its types can
+			for(int i = 1; this.learners != null && i < this.learners.size(); ++i){
+				caps.and(this.learners.get(i).newClassifier().getCapabilities());
+			}
 		}
 		catch(Exception e){
 			caps = null;
@@ -260,6 +1941,76 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 	}
 	
 	//Getters/setters
+	/**
+	 * Sets the number of attributes each weak classifier is trained on, chosen at 
+	 * random for each classifier. Training cost falls roughly in proportion, and the
+	 * classifiers differ more from each other.
+	 * 
+	 * @param numAttributes
+	 *   Attributes per classifier, not counting the class, or 0 to use all attributes
+	 */
+	public void setSubspaceSize(int numAttributes){
+		this.subspaceSize = numAttributes;
+	}
+	
+	public int getSubspaceSize(){
+		return this.subspaceSize;
+	}
+	
+	/**
+	 * Gets the attributes and class labels the model was trained on, without any rows.
+	 * 
+	 * @return
+	 *   Empty copy of the training data, or null if the model has not been built
+	 */
+	public Instances getHeader(){
+		return this.header;
+	}
+	
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+	
+	/**
+	 * Sets the directory build state is checkpointed to. A build of the same model on 
+	 * the same data that finds a checkpoint there resumes from it. The checkpoint is
+	 * removed once the build finishes.
+	 * 
+	 * @param dir
+	 *   Checkpoint directory, or null to disable checkpoints
+	 */
+	public void setCheckpointDir(File dir){
+		this.checkpointDir = dir;
+	}
+	
+	public File getCheckpointDir(){
+		return this.checkpointDir;
+	}
+	
+	public void setCheckpointInterval(long millis){
+		this.checkpointInterval = millis;
+	}
+	
+	/**
+	 * Keeps the weights of the edges between nodes of complete graphs in a memory 
+	 * mapped file instead of the heap. The file holds 8 bytes per pair of nodes in 
+	 * each direction, and is replaced each time the model is built.
+	 * 
+	 * @param f
+	 *   File to store edge weights in, or null to keep them in the graph
+	 */
+	public void setEdgeStore(File f){
+		this.edgeStore = f;
+	}
+	
+	public File getEdgeStore(){
+		return this.edgeStore;
+	}
+	
+	public List<ClassifierNode> getPool(){
+		return Collections.unmodifiableList(this.pool);
+	}
+	
 	public void setClassifier(String c){
 		this.classfierName = c;
 	}
@@ -272,6 +2023,81 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 		return this.p;
 	}
 	
+	/**
+	 * Sets the types of weak classifier in the pool, e.g. "weka.classifiers.trees.DecisionStump",
+	 * "weka.classifiers.functions.Logistic" and "weka.classifiers.trees.REPTree -M 2".
+	 * Pool positions are given the types in turn.
+	 * 
+	 * @param specs
+	 *   Class name and options of each type, or none to use the classifier set in the
+	 *   constructor for every node
+	 * @throws Exception
+	 *   If the options of a type cannot be parsed
+	 */
+	public void setLearners(String... specs) throws Exception{
+		
+		Vector<LearnerSpec> parsed = new Vector<LearnerSpec>();
+		for(int i = 0; i < specs.length; ++i){
+			parsed.add(LearnerSpec.parse(specs[i]));
+		}
+		
+		this.setLearnerSpecs(parsed);
+	}
+	
+	public void setLearnerSpecs(List<LearnerSpec> specs){
+		this.learners = specs != null && !specs.isEmpty() ? new Vector<LearnerSpec>(specs) : null;
+	}
+	
+	public List<LearnerSpec> getLearnerSpecs(){
+		return this.learners;
+	}
+	
+	/**
+	 * Sets the number of threads the weak classifiers are trained on. Longer training
+	 * is started first, as estimated by getCostModel(), see BuildScheduler.
+	 * 
+	 * @param threads
+	 *   Number of threads, 1 trains them on the calling thread in pool order
+	 */
+	public void setNumBuildThreads(int threads){
+		this.numBuildThreads = threads;
+	}
+	
+	public int getNumBuildThreads(){
+		return this.numBuildThreads;
+	}
+	
+	/**
+	 * Gets the training times of the weak classifiers built so far, which are kept
+	 * with the model so later builds are scheduled from them.
+	 */
+	public LearnerCostModel getCostModel(){
+		return this.costModel;
+	}
+	
+	/**
+	 * Enables choosing p by progressive sampling at the start of each build, see
+	 * chooseProportion(). The chosen value is then returned by getProportion().
+	 * 
+	 * @param auto
+	 *   True to choose p automatically, false to use the value set by setProportion()
+	 */
+	public void setAutoProportion(boolean auto){
+		this.autoProportion = auto;
+	}
+	
+	public boolean getAutoProportion(){
+		return this.autoProportion;
+	}
+	
+	public void setPlateauTolerance(double tolerance){
+		this.plateauTolerance = tolerance;
+	}
+	
+	public double getPlateauTolerance(){
+		return this.plateauTolerance;
+	}
+	
 	public void setB(double b){
 		this.b = b;
 	}
@@ -280,6 +2106,251 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 		return this.b;
 	}
 	
+	/**
+	 * Enables or disables concurrent inference. When enabled, classifyInstance() and
+	 * distributionForInstance() may be called from any number of threads at once; 
+	 * each thread scores with its own copy of the path nodes. Takes effect immediately
+	 * on a built model.
+	 * 
+	 * @param concurrent
+	 *   True to allow concurrent inference
+	 * @throws Exception
+	 *   If the path cannot be compiled for concurrent use
+	 */
+	public void setConcurrentInference(boolean concurrent) throws Exception{
+		this.concurrentInference = concurrent;
+		this.compileScorers();
+	}
+	
+	public boolean getConcurrentInference(){
+		return this.concurrentInference;
+	}
+	
+	/**
+	 * Enables early exit inference. The path nodes are applied to a data point in 
+	 * order of decreasing weight, stopping once the remaining nodes can neither change 
+	 * the predicted class nor move the class probabilities by more than the tolerance.
+	 * Predicted classes are unchanged. Takes effect immediately on a built model.
+	 * 
+	 * @param tolerance
+	 *   Largest change in class probability allowed, from 0 to 0.5 (which only keeps 
+	 *   the predicted class), or negative to apply every path node
+	 * @throws Exception
+	 *   If the path cannot be compiled
+	 */
+	public void setEarlyExitTolerance(double tolerance) throws Exception{
+		this.earlyExitTolerance = tolerance;
+		this.compileScorers();
+	}
+	
+	public double getEarlyExitTolerance(){
+		return this.earlyExitTolerance;
+	}
+	
+	/**
+	 * Gets the early exit scorer of the current path, which counts how often 
+	 * inference stopped early.
+	 * 
+	 * @return
+	 *   The scorer, or null if early exit is disabled or the model is not built
+	 */
+	public CascadeScorer getCascade(){
+		return this.cascade;
+	}
+	
+	/**
+	 * Records the time taken by each path node, the logistic regression and each whole
+	 * call of every prediction from now on. Inference then goes through the thread-safe 
+	 * compiled path, as with concurrent inference. Takes effect immediately on a built 
+	 * model, and the telemetry follows the path as it is rebuilt.
+	 * 
+	 * @param telemetry
+	 *   Where to record inference times, or null to stop recording them
+	 * @throws Exception
+	 *   If the path cannot be compiled
+	 */
+	public void setTelemetry(InferenceTelemetry telemetry) throws Exception{
+		this.telemetry = telemetry;
+		this.compileScorers();
+	}
+	
+	public InferenceTelemetry getTelemetry(){
+		return this.telemetry;
+	}
+	
+	/**
+	 * Caches the class probabilities of each data point scored, so the path is only 
+	 * applied once to data points that are scored repeatedly. Cached probabilities are
+	 * keyed by the version of the compiled path as well, so they are never returned 
+	 * once the model is rebuilt or its inference settings are changed. A cache may be 
+	 * shared by several models.
+	 * 
+	 * @param cache
+	 *   Cache to look up and store predictions in, or null to always apply the path
+	 */
+	public void setPredictionCache(PredictionCache cache){
+		this.predictionCache = cache;
+	}
+	
+	public PredictionCache getPredictionCache(){
+		return this.predictionCache;
+	}
+	
+	/**
+	 * Version of the compiled path that cached predictions are keyed by.
+	 */
+	public long getVersion(){
+		return this.version;
+	}
+	
+	/**
+	 * Compiles the current path for early exit, concurrent inference and telemetry, as enabled.
+	 */
+	void compileScorers() throws Exception{
+		
+		this.version = VERSIONS.incrementAndGet();
+		
+		if(this.path == null){
+			this.cascade = null;
+			this.scorer = null;
+			return;
+		}
+		
+		CascadeScorer early = this.earlyExitTolerance >= 0.0 ? new CascadeScorer(this.path, this.earlyExitTolerance) : null;
+		
+		this.scorer = this.concurrentInference || this.telemetry != null ? new ConcurrentScorer(this.path, early, this.telemetry) : null;
+		this.cascade = early;
+	}
+	
+	/**
+	 * Recompiles the path for early exit and concurrent inference after deserialization.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		
+		try{
+			this.compileScorers();
+		}
+		catch(Exception e){
+			throw new IOException("Could not compile path for inference: " + e);
+		}
+	}
+	
+	public void setExactEdgesPerNode(int k){
+		this.exactEdgesPerNode = k;
+	}
+	
+	public int getExactEdgesPerNode(){
+		return this.exactEdgesPerNode;
+	}
+	
+	public void setNumNeighbours(int k){
+		this.numNeighbours = k;
+	}
+	
+	public int getNumNeighbours(){
+		return this.numNeighbours;
+	}
+	
+	/**
+	 * Sets whether edges are fit with LogisticFit, each warm started from the last edge
+	 * fit with the same source node, or with weka's Logistic from scratch, the default.
+	 * The two fits converge to the same coefficients up to LogisticFit's tolerance, so
+	 * an edge whose rows sit right on the decision boundary may score differently.
+	 */
+	public void setWarmStartEdges(boolean warmStart){
+		this.warmStartEdges = warmStart;
+	}
+	
+	public boolean getWarmStartEdges(){
+		return this.warmStartEdges;
+	}
+	
+	/**
+	 * Enables racing of the edges out of each node, see EdgeRace. Each edge is scored on
+	 * growing random batches of the training data and abandoned, with the accuracy 
+	 * measured so far, once a Hoeffding bound shows it cannot beat the best edge out of 
+	 * the same node, or out of either node if edges run both ways. Abandoned edges are
+	 * not kept in the edge scores or checkpoint. Edges that are not abandoned are fit to
+	 * all rows as they would be without racing, with weka's Logistic unless edges are
+	 * warm started, see setWarmStartEdges(). Racing cannot be combined with workers, 
+	 * see setNumWorkers().
+	 * 
+	 * @param race
+	 *   True to race edges, false to score every edge on all rows
+	 */
+	public void setRaceEdges(boolean race){
+		this.raceEdges = race;
+	}
+	
+	public boolean getRaceEdges(){
+		return this.raceEdges;
+	}
+	
+	/**
+	 * @param confidence
+	 *   Probability of abandoning an edge that would have beaten the best edge out of 
+	 *   its node, in (0, 1)
+	 */
+	public void setRaceConfidence(double confidence){
+		this.raceConfidence = confidence;
+	}
+	
+	public double getRaceConfidence(){
+		return this.raceConfidence;
+	}
+	
+	/**
+	 * Newton steps taken by the warm started edge fits of the last build, when edges 
+	 * were fit in this JVM.
+	 */
+	public long getEdgeFitIterations(){
+		return this.edgeFitIterations;
+	}
+	
+	public void setOutputPrecision(int bits){
+		this.outputPrecision = bits;
+	}
+	
+	public int getOutputPrecision(){
+		return this.outputPrecision;
+	}
+	
+	public void setNodeOutputs(NodeOutputCache outputs){
+		this.outputs = outputs;
+	}
+	
+	public NodeOutputCache getNodeOutputs(){
+		return this.outputs;
+	}
+	
+	public void setEdgeScores(EdgeScoreCache scores){
+		this.edgeScores = scores;
+	}
+	
+	public EdgeScoreCache getEdgeScores(){
+		return this.edgeScores;
+	}
+	
+	public void setNumWorkers(int n){
+		this.numWorkers = n;
+	}
+	
+	public int getNumWorkers(){
+		return this.numWorkers;
+	}
+	
+	public void setWorkerLauncher(EdgeScoringCoordinator.WorkerLauncher launcher){
+		this.launcher = launcher;
+	}
+	
+	public EdgeScoringCoordinator.WorkerLauncher getWorkerLauncher(){
+		if(this.launcher == null){
+			this.launcher = new EdgeScoringCoordinator.ProcessLauncher();
+		}
+		return this.launcher;
+	}
+	
 	
 	
 	/**
@@ -328,6 +2399,18 @@ public class GraphClassifier implements Classifier, Serializable, OptionHandler
 		}
 	}
 
+	/**
+	 * @param debug
+	 *   True to print the progress of builds, such as how many edges were fit
+	 */
+	public void setDebug(boolean debug){
+		this.debug = debug;
+	}
+	
+	public boolean getDebug(){
+		return this.debug;
+	}
+
 	/**
 	 * Testing method.
 	 * 
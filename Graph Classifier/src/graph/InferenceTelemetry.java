@@ -0,0 +1,351 @@
+package graph;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import weka.core.Utils;
+
+/**
+ * Records where the time of each prediction of a GraphClassifier goes: applying each
+ * node of the path, the logistic regression on the path sum, and everything else.
+ * Enabled with GraphClassifier.setTelemetry().
+ *
+ * Times are kept in lock free LatencyHistograms, so scoring threads never wait on
+ * each other to record. Timing costs two clock reads per node, which is small next
+ * to most weka classifiers; setSampleEvery() times only every n-th data point when
+ * it is not. Data points are counted whether or not they are timed.
+ *
+ * The times can be read with snapshot(), or over JMX once register() has been called.
+ *
+ * @author mchristopher
+ *
+ */
+public class InferenceTelemetry implements InferenceTelemetryMBean {
+
+	/** Name of each path position, "position:ID" */
+	volatile String[] nodeNames = new String[0];
+
+	/** Time of each call to the node at each path position */
+	volatile LatencyHistogram[] nodes = new LatencyHistogram[0];
+
+	/** Time of each whole prediction */
+	final LatencyHistogram total = new LatencyHistogram();
+
+	/** Time of the logistic regression of each prediction */
+	final LatencyHistogram logistic = new LatencyHistogram();
+
+	/** Time of each prediction not spent in the nodes or logistic regression */
+	final LatencyHistogram overhead = new LatencyHistogram();
+
+	/** Number of data points scored */
+	final AtomicLong rows = new AtomicLong();
+
+	/** Time of the last reset */
+	volatile long startNanos = System.nanoTime();
+
+	/** Number of data points between those whose time is recorded */
+	volatile int sampleEvery = 1;
+
+	/** Name registered with the platform MBean server, null if not registered */
+	ObjectName registered;
+
+	/**
+	 * Sets the path the times are recorded for. The node times are kept if the path
+	 * has the same nodes, otherwise they start over.
+	 *
+	 * @param path
+	 *   Nodes of the path, in the order of PathClassifier.getNodes()
+	 * @return
+	 *   Histogram of each path position, for the scorer of the path to record into
+	 */
+	public synchronized LatencyHistogram[] bind(List<ClassifierNode> path){
+
+		String[] names = new String[path.size()];
+		for(int i = 0; i < names.length; ++i){
+			names[i] = i + ":" + path.get(i).getID();
+		}
+
+		if(!java.util.Arrays.equals(names, nodeNames)){
+			LatencyHistogram[] h = new LatencyHistogram[names.length];
+			for(int i = 0; i < h.length; ++i){
+				h[i] = new LatencyHistogram();
+			}
+			this.nodes = h;
+			this.nodeNames = names;
+		}
+
+		return this.nodes;
+	}
+
+	/**
+	 * Counts a data point about to be scored.
+	 *
+	 * @return
+	 *   True if its time should be recorded
+	 */
+	public boolean startRow(){
+		long n = rows.incrementAndGet();
+		int every = sampleEvery;
+		return every <= 1 || n % every == 0;
+	}
+
+	/**
+	 * Counts a block of data points about to be scored. Blocks are always timed.
+	 */
+	public void startRows(int n){
+		rows.addAndGet(n);
+	}
+
+	/**
+	 * Records the times of a prediction.
+	 *
+	 * @param times
+	 *   Times of the data point(s), e.g. the mean per row of a block
+	 * @param totalNanos
+	 *   Time of the whole prediction
+	 * @param nodeNanos
+	 *   Time spent in path nodes
+	 * @param logisticNanos
+	 *   Time spent in the logistic regression
+	 */
+	public void recordCall(long times, long totalNanos, long nodeNanos, long logisticNanos){
+		total.record(totalNanos, times);
+		logistic.record(logisticNanos, times);
+		overhead.record(totalNanos - nodeNanos - logisticNanos, times);
+	}
+
+	/**
+	 * Takes a consistent enough copy of the times recorded so far. Times recorded while
+	 * the copy is taken may or may not be in it.
+	 */
+	public Snapshot snapshot(){
+
+		Snapshot s = new Snapshot();
+
+		s.rows = rows.get();
+		s.seconds = (System.nanoTime() - startNanos)/1e9;
+		s.total = new Stats("total", total);
+		s.logistic = new Stats("logistic", logistic);
+		s.overhead = new Stats("overhead", overhead);
+
+		String[] names;
+		LatencyHistogram[] h;
+		synchronized(this){
+			names = nodeNames;
+			h = nodes;
+		}
+
+		s.nodes = new Stats[h.length];
+		for(int i = 0; i < h.length; ++i){
+			s.nodes[i] = new Stats(names[i], h[i]);
+		}
+
+		return s;
+	}
+
+	/**
+	 * Registers with the platform MBean server as graph:type=InferenceTelemetry,name=...
+	 *
+	 * @param name
+	 *   Name to tell models apart by
+	 * @throws Exception
+	 *   If the name is taken or invalid
+	 */
+	public synchronized void register(String name) throws Exception{
+
+		this.unregister();
+
+		ObjectName on = new ObjectName("graph:type=InferenceTelemetry,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		this.registered = on;
+	}
+
+	/**
+	 * Removes the registration made by register(), if any.
+	 */
+	public synchronized void unregister() throws Exception{
+
+		if(this.registered != null){
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(this.registered)){
+				server.unregisterMBean(this.registered);
+			}
+			this.registered = null;
+		}
+	}
+
+	//InferenceTelemetryMBean
+	public long getRows(){
+		return rows.get();
+	}
+
+	public long getTimedRows(){
+		return total.getCount();
+	}
+
+	public double getRowsPerSecond(){
+		double seconds = (System.nanoTime() - startNanos)/1e9;
+		return seconds > 0 ? rows.get()/seconds : 0.0;
+	}
+
+	public double getMeanMicros(){
+		return total.getMean()/1000.0;
+	}
+
+	public double getP50Micros(){
+		return total.percentile(0.50)/1000.0;
+	}
+
+	public double getP99Micros(){
+		return total.percentile(0.99)/1000.0;
+	}
+
+	public double getMaxMicros(){
+		return total.getMax()/1000.0;
+	}
+
+	public double getLogisticP99Micros(){
+		return logistic.percentile(0.99)/1000.0;
+	}
+
+	public double getOverheadP99Micros(){
+		return overhead.percentile(0.99)/1000.0;
+	}
+
+	public String[] getNodeReport(){
+
+		Stats[] stats = this.snapshot().nodes;
+
+		String[] lines = new String[stats.length];
+		for(int i = 0; i < stats.length; ++i){
+			lines[i] = stats[i].toString();
+		}
+
+		return lines;
+	}
+
+	public int getSampleEvery(){
+		return this.sampleEvery;
+	}
+
+	public void setSampleEvery(int n){
+		this.sampleEvery = Math.max(1, n);
+	}
+
+	public synchronized void reset(){
+
+		for(int i = 0; i < nodes.length; ++i){
+			nodes[i].reset();
+		}
+		total.reset();
+		logistic.reset();
+		overhead.reset();
+		rows.set(0);
+		startNanos = System.nanoTime();
+	}
+
+	public String toString(){
+		return this.snapshot().toString();
+	}
+
+	/**
+	 * Summary of one histogram, times in nanoseconds.
+	 */
+	public static class Stats{
+
+		public final String name;
+
+		public final long count;
+
+		public final double mean;
+
+		public final long p50;
+
+		public final long p90;
+
+		public final long p99;
+
+		public final long max;
+
+		Stats(String name, LatencyHistogram h){
+			this.name = name;
+			this.count = h.getCount();
+			this.mean = h.getMean();
+			this.p50 = h.percentile(0.50);
+			this.p90 = h.percentile(0.90);
+			this.p99 = h.percentile(0.99);
+			this.max = h.getMax();
+		}
+
+		/**
+		 * Name, count, then mean, p50, p90, p99 and max in microseconds.
+		 */
+		public String toString(){
+			return name + "," + count + "," + Utils.doubleToString(mean/1000.0, 3) + "," + p50/1000.0 + ","
+				+ p90/1000.0 + "," + p99/1000.0 + "," + max/1000.0;
+		}
+	}
+
+	/**
+	 * Copy of the times recorded, see snapshot().
+	 */
+	public static class Snapshot{
+
+		public static final String HEADER = "name,count,meanMicros,p50Micros,p90Micros,p99Micros,maxMicros";
+
+		/** Number of data points scored */
+		public long rows;
+
+		/** Time since the last reset */
+		public double seconds;
+
+		public Stats total;
+
+		public Stats logistic;
+
+		public Stats overhead;
+
+		/** Times of each path position */
+		public Stats[] nodes;
+
+		public double getRowsPerSecond(){
+			return seconds > 0 ? rows/seconds : 0.0;
+		}
+
+		/**
+		 * Node with the highest 99th percentile time, the first place to look when
+		 * predictions are slow. Null if the path is empty.
+		 */
+		public Stats slowestNode(){
+			Stats slowest = null;
+			for(int i = 0; i < nodes.length; ++i){
+				if(slowest == null || nodes[i].p99 > slowest.p99){
+					slowest = nodes[i];
+				}
+			}
+			return slowest;
+		}
+
+		/**
+		 * Throughput, then one CSV line per histogram.
+		 */
+		public String toString(){
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(rows).append(" rows in ").append(Utils.doubleToString(seconds, 3)).append(" s, ")
+				.append(Utils.doubleToString(getRowsPerSecond(), 1)).append(" rows/s\n");
+			sb.append(HEADER).append('\n');
+			sb.append(total).append('\n');
+			sb.append(logistic).append('\n');
+			sb.append(overhead).append('\n');
+			for(int i = 0; i < nodes.length; ++i){
+				sb.append(nodes[i]).append('\n');
+			}
+
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package graph;
+
+/**
+ * Management interface of InferenceTelemetry, as seen over JMX. Times are in
+ * microseconds.
+ *
+ * @author mchristopher
+ *
+ */
+public interface InferenceTelemetryMBean {
+
+	/** Number of data points scored since the last reset */
+	long getRows();
+
+	/** Number of data points scored since the last reset whose time was recorded */
+	long getTimedRows();
+
+	/** Data points scored per second since the last reset */
+	double getRowsPerSecond();
+
+	double getMeanMicros();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getMaxMicros();
+
+	/** 99th percentile time of applying the logistic regression to the path sum */
+	double getLogisticP99Micros();
+
+	/** 99th percentile time spent outside the path nodes and logistic regression */
+	double getOverheadP99Micros();
+
+	/** One line per path node: its position, ID, calls and time percentiles */
+	String[] getNodeReport();
+
+	/** Number of data points between those whose time is recorded */
+	int getSampleEvery();
+
+	void setSampleEvery(int n);
+
+	/** Forgets every time and count recorded */
+	void reset();
+}
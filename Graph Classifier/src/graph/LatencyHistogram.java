@@ -0,0 +1,166 @@
+package graph;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds that many threads can record into at once
+ * without locking.
+ *
+ * Durations below 16ns get a bucket each. Above that each power of two is split into
+ * 8 buckets of equal width, so any duration up to several centuries falls into one of
+ * under 500 buckets and percentiles are reported to within 12.5%. Recording is a
+ * few shifts and an atomic increment.
+ *
+ * @author mchristopher
+ *
+ */
+public class LatencyHistogram {
+
+	/** Durations below this have a bucket each */
+	static final int LINEAR = 16;
+
+	/** log2 of the number of buckets each power of two is split into */
+	static final int SUB_BITS = 3;
+
+	/** Number of buckets each power of two is split into */
+	static final int SUB = 1 << SUB_BITS;
+
+	/** Number of buckets, enough for any positive long */
+	static final int NUM_BUCKETS = LINEAR + (63 - 4)*SUB;
+
+	/** Number of durations recorded in each bucket */
+	final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+	/** Number of durations recorded */
+	final AtomicLong count = new AtomicLong();
+
+	/** Sum of the durations recorded */
+	final AtomicLong sum = new AtomicLong();
+
+	/** Longest duration recorded */
+	final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *   Duration in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos){
+		this.record(nanos, 1);
+	}
+
+	/**
+	 * Records the same duration several times, e.g. the mean time per row of a block.
+	 *
+	 * @param nanos
+	 *   Duration in nanoseconds, negative values are recorded as 0
+	 * @param times
+	 *   Number of times to record it
+	 */
+	public void record(long nanos, long times){
+
+		long v = Math.max(nanos, 0L);
+
+		counts.addAndGet(bucket(v), times);
+		count.addAndGet(times);
+		sum.addAndGet(v*times);
+
+		long m;
+		while(v > (m = max.get()) && !max.compareAndSet(m, v)){
+		}
+	}
+
+	/**
+	 * Bucket a duration falls in.
+	 */
+	static int bucket(long v){
+
+		if(v < LINEAR){
+			return (int) v;
+		}
+
+		int e = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+
+		return LINEAR + (e - 4)*SUB + sub;
+	}
+
+	/**
+	 * Smallest duration that falls in a bucket.
+	 */
+	static long lowerBound(int b){
+
+		if(b < LINEAR){
+			return b;
+		}
+
+		int e = (b - LINEAR)/SUB + 4;
+		int sub = (b - LINEAR) % SUB;
+
+		return (long) (SUB + sub) << (e - SUB_BITS);
+	}
+
+	/**
+	 * Gets a percentile of the durations recorded so far.
+	 *
+	 * @param q
+	 *   Fraction of durations at or below the percentile, in [0, 1]
+	 * @return
+	 *   Upper end of the bucket holding the percentile, at most the longest duration,
+	 *   or 0 if nothing was recorded
+	 */
+	public long percentile(double q){
+
+		long n = count.get();
+		if(n == 0){
+			return 0;
+		}
+
+		long rank = Math.max(1L, (long) Math.ceil(q*n));
+		long seen = 0;
+
+		for(int b = 0; b < NUM_BUCKETS; ++b){
+			seen += counts.get(b);
+			if(seen >= rank){
+				long upper = b + 1 < NUM_BUCKETS ? lowerBound(b + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(upper, max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public long getSum(){
+		return sum.get();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * Mean duration in nanoseconds, 0 if nothing was recorded.
+	 */
+	public double getMean(){
+		long n = count.get();
+		return n > 0 ? sum.get()/(double) n : 0.0;
+	}
+
+	/**
+	 * Forgets every duration recorded. Durations recorded while resetting may be
+	 * partly kept.
+	 */
+	public void reset(){
+		for(int b = 0; b < NUM_BUCKETS; ++b){
+			counts.set(b, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
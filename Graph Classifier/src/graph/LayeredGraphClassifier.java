@@ -1,19 +1,15 @@
 package graph;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Random;
 import java.util.Vector;
 
-import org.jgrapht.graph.DefaultDirectedWeightedGraph;
-
-import weka.classifiers.AbstractClassifier;
-import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.converters.ArffLoader;
 import weka.core.converters.CSVLoader;
-import weka.filters.Filter;
-import weka.filters.unsupervised.instance.Resample;
 
 public class LayeredGraphClassifier extends GraphClassifier {
 
@@ -24,6 +20,15 @@ public class LayeredGraphClassifier extends GraphClassifier {
 	/** Number of classifers in each layer */
 	private int numClassifiersPerLayer = 2;
 	
+	/** Number of classifiers in each layer, when the layers differ in width */
+	private int[] layerWidths = null;
+	
+	/** 
+	 * Number of nodes in each layer whose edges to the next layer are scored, chosen
+	 * by the cost of the best path reaching them. 0 scores every edge.
+	 */
+	private int beamWidth = 0;
+	
 	public LayeredGraphClassifier(){
 		this(10, 10, "weka.classifiers.functions.Logistic", null);
 	}
@@ -50,71 +55,122 @@ public class LayeredGraphClassifier extends GraphClassifier {
 	}
 	
 	/**
-	 * Build the ensemble classifier model using the given training data.
+	 * Creates a layered classifier whose layers may hold different numbers of weak
+	 * classifiers.
 	 * 
-	 * @param data
-	 *   The set of data on which to train
+	 * @param layerWidths
+	 *   Number of classifiers in each layer, from the layer connected to the source
+	 *   to the layer connected to the sink
+	 * @param classifier
+	 *    Fully qualified name of classifier type to use for weak classifiers
+	 * @param args
+	 *    Arguments used to create each weak classifier
 	 */
-	public void buildClassifier(Instances data) throws Exception{
+	public LayeredGraphClassifier(int[] layerWidths, String classifier, String args[]){
+		this(layerWidths.length, 0, classifier, args);
 		
-		this.caps = null;
-		this.trainData = data;
+		this.layerWidths = layerWidths.clone();
+		for(int l = 0; l < layerWidths.length; ++l){
+			this.numClassifiersPerLayer = Math.max(this.numClassifiersPerLayer, layerWidths[l]);
+		}
+	}
+	
+	/**
+	 * Number of classifiers in a layer.
+	 */
+	public int getLayerWidth(int layer){
+		return this.layerWidths != null ? this.layerWidths[layer] : this.numClassifiersPerLayer;
+	}
+	
+	/**
+	 * Position in the pool of the first classifier of a layer.
+	 */
+	public int layerStart(int layer){
 		
-		Random rand = new Random();
+		if(this.layerWidths == null){
+			return layer*this.numClassifiersPerLayer;
+		}
 		
-		graph = new DefaultDirectedWeightedGraph<ClassifierNode,ClassifierEdge>(ClassifierEdge.class);
+		int start = 0;
+		for(int l = 0; l < layer; ++l){
+			start += this.layerWidths[l];
+		}
+		return start;
+	}
+	
+	/**
+	 * Layer of the classifier at a position in the pool.
+	 */
+	public int layerOf(int i){
 		
-		src = new ClassifierNode("s");
-		sink = new ClassifierNode("t");
+		if(this.layerWidths == null){
+			return i/this.numClassifiersPerLayer;
+		}
 		
-		graph.addVertex(src);
-		graph.addVertex(sink);
+		int l = 0;
+		for(int start = this.layerWidths[0]; i >= start; start += this.layerWidths[++l]);
+		return l;
+	}
+	
+	/**
+	 * Only the first layer is connected to the source, and only the last layer to
+	 * the sink.
+	 */
+	protected void connectToEnds(int i, ClassifierNode c){
 		
-//		System.out.println("NumLayers: "+numLayers+" numClassifiersPerLayer: "+numClassifiersPerLayer);
-//		System.out.println("Size of original dataset: "+trainData.size());
+		//If it's in the first layer
+		if( layerOf(i) == 0 ) {
+			graph.addEdge(src, c);
+			graph.setEdgeWeight(graph.getEdge(src, c), 1.0 - c.getWeight());
+		}
 		
-		for(int i = 0; i < this.numClassifiersPerLayer*this.numLayers; ++i){
-
-			//Build weak classifier
-			ClassifierNode c = new ClassifierNode(this.getClassifierName(i));
-			c.setClassifier(AbstractClassifier.forName(this.classfierName, this.classArgs));
-
-			if(this.caps == null){
-				this.caps = c.getClassifier().getCapabilities();
-			}
-			
-			Resample sampler = new Resample();
-			sampler.setInputFormat(trainData);
-			sampler.setSampleSizePercent(100.0*p);
-			sampler.setRandomSeed(rand.nextInt());
-			
-			Instances curdata = Filter.useFilter(trainData, sampler);
-//			System.out.println(curdata.get(0));
-
-//			System.out.println("First instance: " + curdata.size());
-			
-			c.buildModel(curdata);
-			c.evaluateOnData(trainData);
-//			System.out.println(c.getWeight());
-			
-			//Add to graph representation
-			graph.addVertex(c);
-
-			//If it's in the first layer
-			if( i/numClassifiersPerLayer == 0 ) {
-				graph.addEdge(src, c);
-				graph.setEdgeWeight(graph.getEdge(src, c), 1.0 - c.getWeight());
-			}
-			
-			//if it's in the last layer
-			if( i/numClassifiersPerLayer == numLayers - 1 ) {
-				graph.addEdge(c, sink);
-				graph.setEdgeWeight(graph.getEdge(c, sink), 0.0);
-			}
+		//if it's in the last layer
+		if( layerOf(i) == numLayers - 1 ) {
+			graph.addEdge(c, sink);
+			graph.setEdgeWeight(graph.getEdge(c, sink), 0.0);
+		}
+	}
+	
+	public int poolSize(){
+		return this.layerStart(this.numLayers);
+	}
+	
+	public int getNumLayers(){
+		return this.numLayers;
+	}
+	
+	/**
+	 * Number of classifiers in each layer, or in the widest layer if they differ.
+	 */
+	public int getNumClassifiersPerLayer(){
+		return this.numClassifiersPerLayer;
+	}
+	
+	public int[] getLayerWidths(){
+		
+		int[] widths = new int[this.numLayers];
+		for(int l = 0; l < this.numLayers; ++l){
+			widths[l] = this.getLayerWidth(l);
 		}
 		
-		makeEdges();
-		findShortestPath();
+		return widths;
+	}
+	
+	/**
+	 * Sets the number of nodes in each layer whose edges to the next layer are scored. 
+	 * Only the beamWidth nodes with the cheapest paths from the source are extended, 
+	 * so building costs beamWidth times the layer width fits per layer rather than 
+	 * the square of the width.
+	 * 
+	 * @param beamWidth
+	 *   Nodes extended per layer, or 0 to score every edge
+	 */
+	public void setBeamWidth(int beamWidth){
+		this.beamWidth = beamWidth;
+	}
+	
+	public int getBeamWidth(){
+		return this.beamWidth;
 	}
 	
 	/**
@@ -126,49 +182,55 @@ public class LayeredGraphClassifier extends GraphClassifier {
 	 */
 	protected void makeEdges() throws Exception{
 		
-		Vector<ClassifierEdge> curEdge = new Vector<ClassifierEdge>(1);
-		curEdge.add(null);
+		Vector<ClassifierNode> vertices = new Vector<ClassifierNode>(this.pool);
+		
+		if(this.hasSparseEdges()){
+			this.makeBeamEdges(vertices);
+			return;
+		}
 		
-		Vector<ClassifierNode> vertices = new Vector<ClassifierNode>();
-		vertices.addAll(this.graph.vertexSet());
-		vertices.remove(this.src);
-		vertices.remove(this.sink);
+		int numPairs = 0;
+		for(int i = 0; i < numLayers - 1; i++) {
+			numPairs += this.getLayerWidth(i)*this.getLayerWidth(i + 1);
+		}
+		int[] first = new int[numPairs];
+		int[] second = new int[numPairs];
 		
+		int pair = 0;
 		for(int i = 0; i < numLayers - 1; i++) {
 			
-			for(int j = 0; j < numClassifiersPerLayer; j++) {
-				
-				int classiferId = i*numClassifiersPerLayer + j;
-				
-				ClassifierNode ci = vertices.get( classiferId );
+			for(int j = 0; j < this.getLayerWidth(i); j++) {
 				
+				int classiferId = this.layerStart(i) + j;
 				
-				for(int k = 0; k < numClassifiersPerLayer; k++ ) {
-					
-					int adjClassifier = (i+1)*numClassifiersPerLayer + k;
-					
-					ClassifierNode cj = vertices.get( adjClassifier );
-					
-					this.graph.addEdge(ci, cj);
-					
-					ClassifierEdge cicj = graph.getEdge(ci, cj);
-					curEdge.set(0, cicj);
-					
-					LayeredPathClassifier pc = new LayeredPathClassifier(curEdge);
-					pc.buildClassifier(trainData);
-					double acc = pc.evaluateOnData(trainData);
-					
-//					System.out.println("Edge: " + ci + " -> " + cj + ": acc = " + acc + ", w = " + ((1.0 - acc) - (1.0 - ci.getWeight())));
+				for(int k = 0; k < this.getLayerWidth(i + 1); k++ ) {
 					
-					this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - acc) - (1.0 - ci.getWeight()));
+					int adjClassifier = this.layerStart(i + 1) + k;
 					
+					first[pair] = classiferId;
+					second[pair] = adjClassifier;
+					++pair;
 				}
 				
-				
 			}
 			
 		}
 		
+		//Pair accuracy is the same as the layered path ci -> cj
+		double[] acc = this.scorePairs(vertices, first, second);
+		
+		for(pair = 0; pair < numPairs; ++pair) {
+			
+			ClassifierNode ci = vertices.get( first[pair] );
+			ClassifierNode cj = vertices.get( second[pair] );
+			
+			this.graph.addEdge(ci, cj);
+			
+//			System.out.println("Edge: " + ci + " -> " + cj + ": acc = " + acc[pair] + ", w = " + ((1.0 - acc[pair]) - (1.0 - ci.getWeight())));
+			
+			this.graph.setEdgeWeight(graph.getEdge(ci, cj), (1.0 - acc[pair]) - (1.0 - ci.getWeight()));
+		}
+		
 		/*
 		for(int i = 0; i < this.size; ++i){
 			
@@ -201,6 +263,107 @@ public class LayeredGraphClassifier extends GraphClassifier {
 		
 	}
 	
+	/**
+	 * Creates edges for layered classifier a layer at a time, only extending the 
+	 * beamWidth nodes of each layer with the cheapest paths from the source. Every
+	 * edge from those nodes to the next layer is scored, which gives the cost of the
+	 * best path to each node of the next layer through the beam.
+	 * 
+	 * @param vertices
+	 *   Weak classifier nodes
+	 * @throws Exception
+	 */
+	protected void makeBeamEdges(List<ClassifierNode> vertices) throws Exception{
+		
+		//Cost of the cheapest path found from the source to each node
+		final double[] cost = new double[vertices.size()];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		
+		for(int j = 0; j < this.getLayerWidth(0); ++j){
+			cost[j] = 1.0 - vertices.get(j).getWeight();
+		}
+		
+		int numPairs = 0;
+		
+		for(int l = 0; l < numLayers - 1; ++l){
+			
+			//Reached nodes of this layer, cheapest first
+			Vector<Integer> beam = new Vector<Integer>();
+			for(int j = this.layerStart(l); j < this.layerStart(l + 1); ++j){
+				if(cost[j] < Double.POSITIVE_INFINITY){
+					beam.add(j);
+				}
+			}
+			Collections.sort(beam, new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					return Double.compare(cost[a], cost[b]);
+				}
+			});
+			beam.setSize(Math.min(beam.size(), this.beamWidth));
+			
+			int next = this.layerStart(l + 1);
+			int width = this.getLayerWidth(l + 1);
+			int[] first = new int[beam.size()*width];
+			int[] second = new int[first.length];
+			
+			for(int b = 0, pair = 0; b < beam.size(); ++b){
+				for(int k = 0; k < width; ++k, ++pair){
+					first[pair] = beam.get(b);
+					second[pair] = next + k;
+				}
+			}
+			
+			double[] acc = this.scorePairs(vertices, first, second);
+			
+			for(int pair = 0; pair < first.length; ++pair){
+				
+				ClassifierNode ci = vertices.get(first[pair]);
+				ClassifierNode cj = vertices.get(second[pair]);
+				double w = (1.0 - acc[pair]) - (1.0 - ci.getWeight());
+				
+				this.graph.addEdge(ci, cj);
+				this.graph.setEdgeWeight(graph.getEdge(ci, cj), w);
+				
+				cost[second[pair]] = Math.min(cost[second[pair]], cost[first[pair]] + w);
+			}
+			
+			numPairs += first.length;
+		}
+		
+		if(this.debug){
+			System.out.println("Beam search: scored " + numPairs + " edges, extending " + this.beamWidth + " nodes per layer");
+		}
+	}
+	
+	/**
+	 * Nodes are only paired with the nodes in the next layer.
+	 */
+	protected boolean isPair(int i, int j){
+		return layerOf(j) == layerOf(i) + 1;
+	}
+	
+	/**
+	 * Beam limited graphs only hold the edges of the nodes in each beam, which depend
+	 * on the whole pool. Otherwise layered graphs are complete between adjacent layers.
+	 */
+	protected boolean hasSparseEdges(){
+		
+		for(int l = 0; this.beamWidth > 0 && l < this.numLayers - 1; ++l){
+			if(this.beamWidth < this.getLayerWidth(l)){
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Layered edges only run from one layer to the next.
+	 */
+	protected boolean hasReverseEdges(){
+		return false;
+	}
+	
 	public String toString(){
 		
 		String str = "";
@@ -208,7 +371,12 @@ public class LayeredGraphClassifier extends GraphClassifier {
 		for(int i = 0; i < this.numClassifiersPerLayer; ++i){
 			for(int j = 0; j < this.numLayers; ++j){
 				
-				ClassifierNode n = new ClassifierNode(this.getClassifierName(j*this.numClassifiersPerLayer + i));
+				if(i >= this.getLayerWidth(j)){
+					str += "         ";
+					continue;
+				}
+				
+				ClassifierNode n = new ClassifierNode(this.getClassifierName(this.layerStart(j) + i));
 				if(this.path.contains(n)){
 					str += " **" + n.getID() + "** ";
 				}
@@ -273,39 +441,5 @@ public class LayeredGraphClassifier extends GraphClassifier {
 		}
 		
 	}
-	
-	
-	private class LayeredPathClassifier extends PathClassifier {
-
-		public LayeredPathClassifier(List<ClassifierEdge> edges) {
-			super(edges);
-		}
-		
-		protected double sumOverPath(Instance datum) throws Exception{
-			double sum = 0.0;
-			
-			for(int i = 0; i < this.edges.size(); i += 2){
-				ClassifierNode ci = this.edges.get(i).getSourceNode();
-				ClassifierNode cj = this.edges.get(i).getTargetNode();
-				
-				if(!(ci.getID().equalsIgnoreCase("s") || ci.getID().equalsIgnoreCase("t"))){
-					sum += ci.getWeight()*ci.distributionForInstance(datum)[0];
-				}
-				
-				if(!(cj.getID().equalsIgnoreCase("s") || cj.getID().equalsIgnoreCase("t"))){
-					sum += cj.getWeight()*cj.distributionForInstance(datum)[0];
-				}
-				
-//				if(!ci.getID().equalsIgnoreCase("s"))
-//					sum += ci.getWeight()*ci.distributionForInstance(datum)[0];
-//				if(!ci.getID().equalsIgnoreCase("t"))
-//					sum += cj.getWeight()*cj.distributionForInstance(datum)[0];
-			}
-			
-			return sum;
-		}
-	
-	}
-	
 
 }
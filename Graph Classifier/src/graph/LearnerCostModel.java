@@ -0,0 +1,75 @@
+package graph;
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Estimates how long a weak classifier takes to train, from the size of its sample
+ * and the training times seen so far for classifiers of the same spec.
+ *
+ * Training time is taken to be proportional to the number of values in the sample,
+ * rows times attributes. The rate of each spec is a running average over the nodes
+ * trained so far, so estimates improve as a model is built and rebuilt. Specs that
+ * have not been seen yet are given the mean rate of those that have.
+ *
+ * @author mchristopher
+ *
+ */
+public class LearnerCostModel implements Serializable {
+
+	/** Weight of the newest observation in each running average */
+	static final double SMOOTHING = 0.3;
+
+	/** Milliseconds per sample value of each spec, keyed by LearnerSpec.toString() */
+	HashMap<String, Double> rates = new HashMap<String, Double>();
+
+	/**
+	 * Estimates the training time of a classifier.
+	 *
+	 * @param spec
+	 *   Type and options of the classifier
+	 * @param rows
+	 *   Number of rows in its sample
+	 * @param attributes
+	 *   Number of attributes in its sample
+	 * @return
+	 *   Estimated training time in milliseconds, 1 per value if nothing has been seen
+	 */
+	public synchronized double estimate(LearnerSpec spec, int rows, int attributes){
+
+		Double rate = rates.get(spec.toString());
+
+		if(rate == null){
+			double sum = 0.0;
+			for(Double r : rates.values()){
+				sum += r;
+			}
+			rate = rates.isEmpty() ? 1.0 : sum/rates.size();
+		}
+
+		return rate*rows*attributes;
+	}
+
+	/**
+	 * Records the time taken to train a classifier.
+	 *
+	 * @param spec
+	 *   Type and options of the classifier
+	 * @param rows
+	 *   Number of rows in its sample
+	 * @param attributes
+	 *   Number of attributes in its sample
+	 * @param millis
+	 *   Time taken to train and weight it
+	 */
+	public synchronized void record(LearnerSpec spec, int rows, int attributes, long millis){
+
+		double rate = Math.max(millis, 1)/(double) Math.max(1L, (long) rows*attributes);
+		Double old = rates.get(spec.toString());
+
+		rates.put(spec.toString(), old == null ? rate : (1 - SMOOTHING)*old + SMOOTHING*rate);
+	}
+
+	public synchronized String toString(){
+		return "Training cost (ms per value): " + rates;
+	}
+}
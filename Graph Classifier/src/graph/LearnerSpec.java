@@ -0,0 +1,80 @@
+package graph;
+import java.io.Serializable;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Utils;
+
+/**
+ * Type and options of the weak classifiers at some positions of a pool. A pool may
+ * mix several specs, see GraphClassifier.setLearners().
+ *
+ * @author mchristopher
+ *
+ */
+public class LearnerSpec implements Serializable {
+
+	/** Fully qualified class name of the classifier */
+	String name;
+
+	/** Options of the classifier, as for weka's AbstractClassifier.forName() */
+	String[] args;
+
+	/**
+	 * @param name
+	 *   Fully qualified class name of the classifier
+	 * @param args
+	 *   Options of the classifier, may be null
+	 */
+	public LearnerSpec(String name, String[] args){
+		this.name = name;
+		this.args = args;
+	}
+
+	/**
+	 * Parses a spec given as on the weka command line, e.g.
+	 * "weka.classifiers.trees.REPTree -M 2 -V 0.001".
+	 *
+	 * @param spec
+	 *   Class name followed by its options
+	 * @return
+	 *   The parsed spec
+	 * @throws Exception
+	 *   If the options cannot be split
+	 */
+	public static LearnerSpec parse(String spec) throws Exception{
+
+		String[] parts = Utils.splitOptions(spec);
+		String[] args = new String[parts.length - 1];
+		System.arraycopy(parts, 1, args, 0, args.length);
+
+		return new LearnerSpec(parts[0], args.length > 0 ? args : null);
+	}
+
+	/**
+	 * Creates a new, untrained classifier. The options are copied first, since weka
+	 * blanks out each option it reads.
+	 *
+	 * @return
+	 *   A classifier of this type with these options
+	 * @throws Exception
+	 */
+	public Classifier newClassifier() throws Exception{
+		return AbstractClassifier.forName(name, args != null ? args.clone() : null);
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public String[] getArgs(){
+		return this.args;
+	}
+
+	/**
+	 * Class name and options, as accepted by parse().
+	 */
+	public String toString(){
+		return args != null && args.length > 0 ? name + " " + Utils.joinOptions(args) : name;
+	}
+}
@@ -0,0 +1,213 @@
+package graph;
+
+/**
+ * Logistic regression of the class on a single path sum, fit by Newton's method
+ * from whatever coefficients it currently holds.
+ *
+ * Fitting the edge between ci and cj regresses the class on wi*pi + wj*pj, and every
+ * edge leaving ci shares the wi*pi term, so their coefficients are close. Each fit
+ * starts where the last one ended, and a Newton fit started near the optimum
+ * converges in one or two steps instead of the several needed from scratch. Fitting
+ * stops, before taking the step, once the next step would no longer raise the
+ * likelihood appreciably.
+ *
+ * The model is p(first class) = 1/(1 + exp(-(intercept + slope*sum))), as returned by
+ * PathClassifier.getLogisticCoefficients(). As in weka's Logistic, a small ridge
+ * penalty of RIDGE times the square of the slope of the standardised sum keeps
+ * separable data from diverging, and makes the fit independent of the scale of the
+ * sums. The two fits still stop at different tolerances, so they may differ slightly.
+ *
+ * @author mchristopher
+ *
+ */
+public class LogisticFit {
+
+	/** Ridge penalty on the slope of the standardised sum, weka Logistic's default */
+	static final double RIDGE = 1e-8;
+
+	/** Most Newton steps taken by one fit */
+	static final int MAX_ITERATIONS = 50;
+
+	/**
+	 * Converged once a Newton step would raise the mean log likelihood per row by less
+	 * than this, as estimated by the Newton decrement
+	 */
+	static final double TOLERANCE = 1e-11;
+
+	/** Most times a step is halved when it lowers the likelihood */
+	static final int MAX_HALVINGS = 20;
+
+	double intercept;
+
+	double slope;
+
+	/** Penalty on the square of the slope of the raw sum in the current fit */
+	double penalty;
+
+	/** Whether the next fit starts from scratch */
+	boolean cold = true;
+
+	/** Newton steps taken by the last fit */
+	int iterations;
+
+	/** Newton steps taken by every fit so far */
+	long totalIterations;
+
+	/** Number of fits so far */
+	int fits;
+
+	/** Gradient and Hessian at the point last evaluated, {d/da, d/db} and {daa, dab, dbb} */
+	final double[] gradient = new double[2];
+
+	final double[] hessian = new double[3];
+
+	/**
+	 * Fits the regression, starting from the coefficients of the last fit, or from the
+	 * class prior with a slope of 0 if this is the first fit.
+	 *
+	 * @param sums
+	 *   Path sum of each row
+	 * @param classes
+	 *   Class value (0 or 1) of each row
+	 * @param n
+	 *   Number of rows
+	 */
+	public void fit(double[] sums, double[] classes, int n){
+
+		if(cold){
+			this.start(classes, n);
+		}
+
+		//Penalize the slope of the standardised sum, which is the slope times the standard deviation
+		double mean = 0.0;
+		for(int r = 0; r < n; ++r){
+			mean += sums[r];
+		}
+		mean /= n;
+		double var = 0.0;
+		for(int r = 0; r < n; ++r){
+			var += (sums[r] - mean)*(sums[r] - mean);
+		}
+		var = n > 1 ? var/(n - 1) : 0.0;
+		this.penalty = RIDGE*(var > 0.0 ? var : 1.0);
+
+		double a = intercept;
+		double b = slope;
+		double ll = this.evaluate(a, b, sums, classes, n);
+
+		int it = 0;
+		for(; it < MAX_ITERATIONS; ++it){
+
+			//Solve the 2x2 Newton system H*d = g; H is the negated Hessian, positive definite
+			double det = hessian[0]*hessian[2] - hessian[1]*hessian[1];
+			if(!(det > 0.0)){
+				break;
+			}
+			double da = (hessian[2]*gradient[0] - hessian[1]*gradient[1])/det;
+			double db = (hessian[0]*gradient[1] - hessian[1]*gradient[0])/det;
+
+			//Half the Newton decrement is the likelihood still to gain, so stop before a step that gains nothing
+			if((gradient[0]*da + gradient[1]*db)/2.0 <= TOLERANCE*n){
+				break;
+			}
+
+			//Halve the step until the likelihood does not fall
+			double t = 1.0;
+			double next = this.evaluate(a + da, b + db, sums, classes, n);
+			for(int h = 0; h < MAX_HALVINGS && next < ll; ++h){
+				t /= 2.0;
+				next = this.evaluate(a + t*da, b + t*db, sums, classes, n);
+			}
+
+			a += t*da;
+			b += t*db;
+			ll = next;
+		}
+
+		this.intercept = a;
+		this.slope = b;
+		this.cold = false;
+		this.iterations = it;
+		this.totalIterations += it;
+		++this.fits;
+	}
+
+	/**
+	 * Starts from the class prior: the intercept is its log odds and the slope is 0.
+	 */
+	void start(double[] classes, int n){
+
+		double first = 0.5;
+		for(int r = 0; r < n; ++r){
+			first += classes[r] == 0.0 ? 1.0 : 0.0;
+		}
+
+		this.intercept = Math.log(first/(n + 1.0 - first));
+		this.slope = 0.0;
+	}
+
+	/**
+	 * Penalized log likelihood at {a, b}, leaving its gradient in gradient and its
+	 * negated Hessian in hessian.
+	 */
+	double evaluate(double a, double b, double[] sums, double[] classes, int n){
+
+		double ll = -penalty*b*b;
+		double ga = 0.0, gb = -2.0*penalty*b;
+		double haa = 0.0, hab = 0.0, hbb = 2.0*penalty;
+
+		for(int r = 0; r < n; ++r){
+			double s = sums[r];
+			double z = a + b*s;
+			double y = classes[r] == 0.0 ? 1.0 : 0.0;
+
+			//log(1 + exp(-|z|)) without overflow
+			double e = Math.exp(-Math.abs(z));
+			double p = z >= 0.0 ? 1.0/(1.0 + e) : e/(1.0 + e);
+			ll += y*z - Math.max(z, 0.0) - Math.log1p(e);
+
+			double w = p*(1.0 - p);
+			ga += y - p;
+			gb += (y - p)*s;
+			haa += w;
+			hab += w*s;
+			hbb += w*s*s;
+		}
+
+		gradient[0] = ga;
+		gradient[1] = gb;
+		hessian[0] = haa;
+		hessian[1] = hab;
+		hessian[2] = hbb;
+
+		return ll;
+	}
+
+	/**
+	 * Makes the next fit start from scratch. Counts are kept.
+	 */
+	public void reset(){
+		this.cold = true;
+	}
+
+	//Getters/setters
+	public double getIntercept(){
+		return this.intercept;
+	}
+
+	public double getSlope(){
+		return this.slope;
+	}
+
+	public int getIterations(){
+		return this.iterations;
+	}
+
+	public long getTotalIterations(){
+		return this.totalIterations;
+	}
+
+	public int getFits(){
+		return this.fits;
+	}
+}
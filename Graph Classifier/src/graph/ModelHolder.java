@@ -0,0 +1,331 @@
+package graph;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * Serves predictions from the current version of a GraphClassifier while newer
+ * versions are swapped in, without stopping or locking the threads scoring with it.
+ *
+ * A new model is first switched to concurrent inference and warmed up by scoring a
+ * warm-up batch through its path several times, both a row at a time and in blocks,
+ * so the JIT has compiled its scoring code before it takes any traffic. It then
+ * replaces the current model with a single atomic reference update. Each call reads
+ * the reference once, so calls already in flight finish on the model they started
+ * with, and callers that need several predictions from the same model take a
+ * Version with get() and score with it.
+ *
+ * Only the JIT is warmed: each scoring thread still copies the new path's nodes the
+ * first time it uses them, see ConcurrentScorer.
+ *
+ * @author mchristopher
+ *
+ */
+public class ModelHolder {
+
+	/** Model currently served, null until the first swap */
+	final AtomicReference<Version> current = new AtomicReference<Version>();
+
+	/** Data points scored to warm up each new model, null to skip warm-up */
+	Instances warmup;
+
+	/** Number of times the warm-up batch is scored */
+	int warmupRounds = 3;
+
+	/** Number of data points in each block scored during warm-up */
+	int warmupBlockSize = 256;
+
+	/** Thrown by the last background load or swap, null if it succeeded */
+	volatile Exception loadError;
+
+	/**
+	 * Creates a holder with no model; swap() or load() must be called before scoring.
+	 *
+	 * @param warmup
+	 *   Data points scored to warm up each new model, may be null
+	 */
+	public ModelHolder(Instances warmup){
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Creates a holder serving a model, warmed up first.
+	 *
+	 * @param model
+	 *   Trained model to serve, concurrent inference is enabled on it
+	 * @param warmup
+	 *   Data points scored to warm up each new model, may be null
+	 * @throws Exception
+	 *   If the model cannot be compiled for concurrent inference or fails warm-up
+	 */
+	public ModelHolder(GraphClassifier model, Instances warmup) throws Exception{
+		this(warmup);
+		this.swap(model);
+	}
+
+	/**
+	 * Gets the model currently served. A caller that keeps the version may go on
+	 * scoring with it after it has been swapped out.
+	 *
+	 * @return
+	 *   Current version, or null if no model has been swapped in
+	 */
+	public Version get(){
+		return current.get();
+	}
+
+	/**
+	 * Warms up a trained model and makes it the one served. Swaps are made one at a
+	 * time; scoring is never blocked.
+	 *
+	 * @param model
+	 *   Trained model to serve, concurrent inference is enabled on it
+	 * @return
+	 *   Model served until now, or null if there was none
+	 * @throws Exception
+	 *   If the model cannot be compiled for concurrent inference or fails warm-up,
+	 *   in which case the current model is kept
+	 */
+	public synchronized GraphClassifier swap(GraphClassifier model) throws Exception{
+
+		model.setConcurrentInference(true);
+
+		long warmupMillis = this.warm(model);
+
+		//Keep recording inference times and caching predictions, without the warm-up
+		Version old = current.get();
+		if(old != null && old.model.getTelemetry() != null && model.getTelemetry() == null){
+			model.setTelemetry(old.model.getTelemetry());
+		}
+		if(old != null && old.model.getPredictionCache() != null && model.getPredictionCache() == null){
+			model.setPredictionCache(old.model.getPredictionCache());
+		}
+
+		Version next = new Version(model, old != null ? old.number + 1 : 1, warmupMillis);
+		current.set(next);
+
+		if(model.getDebug()){
+			System.out.println("Serving model version " + next.number + ", warmed up in " + warmupMillis + " ms");
+		}
+
+		return old != null ? old.model : null;
+	}
+
+	/**
+	 * Reads a serialized model, warms it up and makes it the one served.
+	 *
+	 * @param file
+	 *   Model written by weka's SerializationHelper
+	 * @return
+	 *   Model served until now, or null if there was none
+	 * @throws Exception
+	 *   If the model cannot be read, compiled or warmed up, in which case the current
+	 *   model is kept
+	 */
+	public GraphClassifier load(File file) throws Exception{
+		return this.swap((GraphClassifier) SerializationHelper.read(file.getPath()));
+	}
+
+	/**
+	 * Swaps in a model on a new thread, see swap(). Scoring carries on with the current
+	 * model until the new one is warm. A failure is kept in getLoadError().
+	 *
+	 * @return
+	 *   The started thread, which may be joined to wait for the swap
+	 */
+	public Thread swapInBackground(final GraphClassifier model){
+		Thread t = new Thread("model-loader"){
+			public void run(){
+				try{
+					swap(model);
+					loadError = null;
+				}
+				catch(Exception e){
+					System.err.println("Could not swap in model: " + e);
+					loadError = e;
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Loads a model on a new thread, see load(). Scoring carries on with the current
+	 * model until the new one is warm. A failure is kept in getLoadError().
+	 *
+	 * @return
+	 *   The started thread, which may be joined to wait for the swap
+	 */
+	public Thread loadInBackground(final File file){
+		Thread t = new Thread("model-loader"){
+			public void run(){
+				try{
+					load(file);
+					loadError = null;
+				}
+				catch(Exception e){
+					System.err.println("Could not load model " + file + ": " + e);
+					loadError = e;
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Scores the warm-up batch with a model, a row at a time and in blocks.
+	 *
+	 * @return
+	 *   Time taken in milliseconds
+	 */
+	long warm(GraphClassifier model) throws Exception{
+
+		if(warmup == null || warmup.numInstances() == 0){
+			return 0;
+		}
+
+		long start = System.currentTimeMillis();
+
+		int n = warmup.numInstances();
+		Instance[] block = new Instance[Math.min(warmupBlockSize, n)];
+
+		for(int round = 0; round < warmupRounds; ++round){
+			for(int r = 0; r < n; ++r){
+				model.distributionForInstance(warmup.instance(r));
+			}
+
+			for(int r = 0; r < n; r += block.length){
+				int size = Math.min(block.length, n - r);
+				for(int k = 0; k < size; ++k){
+					block[k] = warmup.instance(r + k);
+				}
+				model.distributionsForInstances(block, size);
+			}
+		}
+
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Gets probabilities of data point belonging to each class, with the current model.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class probabilities
+	 * @return
+	 *   Array of class probability values, in order of class values provided in training data
+	 * @throws Exception
+	 */
+	public double[] distributionForInstance(Instance datum) throws Exception{
+		return this.served().distributionForInstance(datum);
+	}
+
+	/**
+	 * Gets class probabilities for a block of data points, all with the current model.
+	 *
+	 * @param rows
+	 *   Data points for which to predict class probabilities
+	 * @param n
+	 *   Number of data points in rows to score
+	 * @return
+	 *   Class probabilities of each data point, as from distributionForInstance()
+	 * @throws Exception
+	 */
+	public double[][] distributionsForInstances(Instance[] rows, int n) throws Exception{
+		return this.served().distributionsForInstances(rows, n);
+	}
+
+	/**
+	 * Classifies a single data point with the current model.
+	 *
+	 * @param datum
+	 *   Data point for which to predict class
+	 * @return
+	 *   Index of predicted class value
+	 * @throws Exception
+	 */
+	public double classifyInstance(Instance datum) throws Exception{
+		return this.served().classifyInstance(datum);
+	}
+
+	GraphClassifier served(){
+		Version v = current.get();
+		if(v == null){
+			throw new IllegalStateException("No model has been loaded");
+		}
+		return v.model;
+	}
+
+	//Getters/setters
+	/**
+	 * Number of the version currently served, counting from 1, or 0 if none.
+	 */
+	public long getVersionNumber(){
+		Version v = current.get();
+		return v != null ? v.number : 0;
+	}
+
+	public Exception getLoadError(){
+		return this.loadError;
+	}
+
+	public synchronized void setWarmup(Instances warmup){
+		this.warmup = warmup;
+	}
+
+	public synchronized Instances getWarmup(){
+		return this.warmup;
+	}
+
+	public synchronized void setWarmupRounds(int rounds){
+		this.warmupRounds = rounds;
+	}
+
+	public synchronized int getWarmupRounds(){
+		return this.warmupRounds;
+	}
+
+	public synchronized void setWarmupBlockSize(int rows){
+		this.warmupBlockSize = Math.max(1, rows);
+	}
+
+	public synchronized int getWarmupBlockSize(){
+		return this.warmupBlockSize;
+	}
+
+	/**
+	 * A model as served, numbered in the order it was swapped in.
+	 */
+	public static class Version{
+
+		final GraphClassifier model;
+
+		/** Position of this model in the order swapped in, from 1 */
+		final long number;
+
+		/** Time taken to warm up the model */
+		final long warmupMillis;
+
+		Version(GraphClassifier model, long number, long warmupMillis){
+			this.model = model;
+			this.number = number;
+			this.warmupMillis = warmupMillis;
+		}
+
+		public GraphClassifier getModel(){
+			return this.model;
+		}
+
+		public long getNumber(){
+			return this.number;
+		}
+
+		public long getWarmupMillis(){
+			return this.warmupMillis;
+		}
+	}
+}
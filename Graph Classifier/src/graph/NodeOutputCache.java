@@ -0,0 +1,562 @@
+package graph;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Stores the outputs of a pool of weak classifier nodes on every row of a data set,
+ * so they can be compared and combined without applying the classifiers again.
+ *
+ * Whether each node classified each row correctly is packed 64 rows to a long.
+ * Pairwise diversity measures are then computed a word at a time using bit
+ * operations, rather than one row at a time.
+ *
+ * The probability each node assigns to the first class can also be kept, for fitting
+ * paths from cached outputs. To keep large node x row matrices in memory these can be
+ * stored at reduced precision: 16 or 8 bit fixed point, or only the predicted label
+ * packed as bits. getMaxError() bounds the error this introduces in each output.
+ *
+ * @author mchristopher
+ *
+ */
+public class NodeOutputCache implements Serializable{
+
+	/** Only whether each node is correct is cached, not its probabilities */
+	public static final int PRECISION_NONE = 0;
+
+	/** Probabilities are replaced by the predicted label, one bit per output */
+	public static final int PRECISION_LABEL = 1;
+
+	/** Probabilities are rounded to 8 bit fixed point */
+	public static final int PRECISION_8 = 8;
+
+	/** Probabilities are rounded to 16 bit fixed point */
+	public static final int PRECISION_16 = 16;
+
+	/** Probabilities are stored as doubles */
+	public static final int PRECISION_DOUBLE = 64;
+
+	/** Number of rows in the data the nodes were applied to */
+	int numRows;
+
+	/** Hash of the values of each row the nodes were applied to, to tell other data of the same size apart */
+	long[] rowHashes;
+
+	/** Data the cache was built on or last found to match, while it is in memory */
+	transient Instances data;
+
+	/** Position of each node in the cache */
+	HashMap<ClassifierNode, Integer> index;
+
+	/** Node at each position in the cache */
+	ClassifierNode[] nodes;
+
+	/** Bit r of correct[i] is set if node i classified row r correctly */
+	long[][] correct;
+
+	/** Bits used to store each probability, one of the PRECISION constants */
+	int precision;
+
+	/** First class probabilities, when stored at PRECISION_DOUBLE */
+	double[][] probs;
+
+	/** First class probabilities scaled to [0, 65535], when stored at PRECISION_16 */
+	char[][] probs16;
+
+	/** First class probabilities scaled to [0, 255], when stored at PRECISION_8 */
+	byte[][] probs8;
+
+	/** Bit r of labels[i] is set if node i predicted the first class for row r, at PRECISION_LABEL */
+	long[][] labels;
+
+	/**
+	 * Applies each node to every row of the data and records whether it was correct.
+	 *
+	 * @param nodes
+	 *   Trained weak classifier nodes
+	 * @param data
+	 *   Data to apply the nodes to
+	 * @throws Exception
+	 */
+	public NodeOutputCache(List<ClassifierNode> nodes, Instances data) throws Exception{
+		this(nodes, data, PRECISION_NONE);
+	}
+
+	/**
+	 * Applies each node to every row of the data and records the results.
+	 *
+	 * @param nodes
+	 *   Trained weak classifier nodes
+	 * @param data
+	 *   Data to apply the nodes to
+	 * @param precision
+	 *   Bits used to store each probability, one of the PRECISION constants
+	 * @throws Exception
+	 */
+	public NodeOutputCache(List<ClassifierNode> nodes, Instances data, int precision) throws Exception{
+
+		this.numRows = data.numInstances();
+		this.rowHashes = hashRows(data);
+		this.data = data;
+		this.precision = precision;
+		this.index = new HashMap<ClassifierNode, Integer>();
+
+		int n = nodes.size();
+		this.nodes = nodes.toArray(new ClassifierNode[n]);
+		int words = (numRows + 63) >>> 6;
+		this.correct = new long[n][words];
+
+		switch(precision){
+		case PRECISION_NONE:
+			break;
+		case PRECISION_LABEL:
+			labels = new long[n][words];
+			break;
+		case PRECISION_8:
+			probs8 = new byte[n][numRows];
+			break;
+		case PRECISION_16:
+			probs16 = new char[n][numRows];
+			break;
+		case PRECISION_DOUBLE:
+			probs = new double[n][numRows];
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported output precision: " + precision);
+		}
+
+		for(int i = 0; i < n; ++i){
+			index.put(this.nodes[i], i);
+			this.store(i, data);
+		}
+	}
+
+	/**
+	 * Replaces the outputs of one node with those of another, e.g. a retrained node
+	 * taking its place in the pool. Only the replacement is applied to the data. The
+	 * cache is updated in place, so other users of it see the change.
+	 *
+	 * @param old
+	 *   Node currently in the cache
+	 * @param replacement
+	 *   Node to cache in its place
+	 * @param data
+	 *   Data the cache was built on
+	 * @throws Exception
+	 */
+	public void replace(ClassifierNode old, ClassifierNode replacement, Instances data) throws Exception{
+
+		int i = indexOf(old);
+		if(i < 0 || this.nodes[i] != old){
+			throw new IllegalArgumentException("Node " + old.getID() + " is not in the cache");
+		}
+
+		index.remove(old);
+		index.put(replacement, i);
+		this.nodes[i] = replacement;
+
+		this.store(i, data);
+	}
+
+	/**
+	 * Applies node i to every row of the data and stores the results at position i.
+	 */
+	void store(int i, Instances data) throws Exception{
+
+		ClassifierNode c = this.nodes[i];
+
+		Arrays.fill(correct[i], 0L);
+		if(labels != null){
+			Arrays.fill(labels[i], 0L);
+		}
+
+		for(int r = 0; r < numRows; ++r){
+			double[] dist = c.distributionForInstance(data.get(r));
+
+			if(Utils.maxIndex(dist) == data.get(r).classValue()){
+				correct[i][r >>> 6] |= 1L << r;
+			}
+
+			switch(precision){
+			case PRECISION_LABEL:
+				if(Utils.maxIndex(dist) == 0){
+					labels[i][r >>> 6] |= 1L << r;
+				}
+				break;
+			case PRECISION_8:
+				probs8[i][r] = (byte) Math.round(dist[0]*255);
+				break;
+			case PRECISION_16:
+				probs16[i][r] = (char) Math.round(dist[0]*65535);
+				break;
+			case PRECISION_DOUBLE:
+				probs[i][r] = dist[0];
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Creates a cache of the outputs of some of the cached nodes on some of the rows,
+	 * without applying any node. The selected nodes are cached under new node objects,
+	 * e.g. the same classifiers weighted on the selected rows.
+	 *
+	 * @param from
+	 *   Nodes in this cache whose outputs are selected
+	 * @param as
+	 *   Node to cache the outputs of each node in from under
+	 * @param rows
+	 *   Rows to select, in the order they appear in the new cache
+	 * @return
+	 *   The selected outputs, at the precision of this cache
+	 */
+	public NodeOutputCache select(List<ClassifierNode> from, List<ClassifierNode> as, int[] rows){
+
+		NodeOutputCache s = new NodeOutputCache();
+
+		int n = from.size();
+		int words = (rows.length + 63) >>> 6;
+
+		s.numRows = rows.length;
+		s.rowHashes = new long[rows.length];
+		for(int r = 0; r < rows.length; ++r){
+			s.rowHashes[r] = rowHashes[rows[r]];
+		}
+		s.precision = this.precision;
+		s.index = new HashMap<ClassifierNode, Integer>();
+		s.nodes = as.toArray(new ClassifierNode[n]);
+		s.correct = new long[n][];
+
+		switch(precision){
+		case PRECISION_LABEL:
+			s.labels = new long[n][];
+			break;
+		case PRECISION_8:
+			s.probs8 = new byte[n][rows.length];
+			break;
+		case PRECISION_16:
+			s.probs16 = new char[n][rows.length];
+			break;
+		case PRECISION_DOUBLE:
+			s.probs = new double[n][rows.length];
+			break;
+		}
+
+		for(int k = 0; k < n; ++k){
+			int i = indexOf(from.get(k));
+			if(i < 0){
+				throw new IllegalArgumentException("Node is not cached: " + from.get(k));
+			}
+
+			s.index.put(s.nodes[k], k);
+			s.correct[k] = selectBits(correct[i], rows, words);
+
+			for(int r = 0; r < rows.length; ++r){
+				switch(precision){
+				case PRECISION_8:
+					s.probs8[k][r] = probs8[i][rows[r]];
+					break;
+				case PRECISION_16:
+					s.probs16[k][r] = probs16[i][rows[r]];
+					break;
+				case PRECISION_DOUBLE:
+					s.probs[k][r] = probs[i][rows[r]];
+					break;
+				}
+			}
+			if(precision == PRECISION_LABEL){
+				s.labels[k] = selectBits(labels[i], rows, words);
+			}
+		}
+
+		return s;
+	}
+
+	/**
+	 * Used by select()
+	 */
+	private NodeOutputCache(){
+	}
+
+	/**
+	 * Hashes the values of each row of the data, class included.
+	 */
+	static long[] hashRows(Instances data){
+
+		long[] hashes = new long[data.numInstances()];
+
+		for(int r = 0; r < hashes.length; ++r){
+			double[] values = data.get(r).toDoubleArray();
+			long h = 17;
+			for(int a = 0; a < values.length; ++a){
+				h = 31*h + Double.doubleToLongBits(values[a]);
+			}
+			hashes[r] = h;
+		}
+
+		return hashes;
+	}
+
+	/**
+	 * Gathers the given bits of a bit set into a new bit set.
+	 */
+	static long[] selectBits(long[] bits, int[] rows, int words){
+		long[] s = new long[words];
+		for(int r = 0; r < rows.length; ++r){
+			s[r >>> 6] |= (bits[rows[r] >>> 6] >>> rows[r] & 1L) << r;
+		}
+		return s;
+	}
+
+	/**
+	 * Proportion of rows a node classifies correctly, as ClassifierNode.evaluateOnData()
+	 * would find on the cached data.
+	 *
+	 * @param i
+	 *   Index of the node
+	 * @return
+	 *   Accuracy of the node
+	 */
+	public double accuracy(int i){
+
+		int count = 0;
+		for(int w = 0; w < correct[i].length; ++w){
+			count += Long.bitCount(correct[i][w]);
+		}
+
+		return count/(double) numRows;
+	}
+
+	/**
+	 * Gets the cached probability that a node assigns to the first class of a row.
+	 *
+	 * @param i
+	 *   Index of the node
+	 * @param r
+	 *   Index of the row
+	 * @return
+	 *   The probability, to within getMaxError()
+	 */
+	public double getProbability(int i, int r){
+		switch(precision){
+		case PRECISION_LABEL:
+			return (labels[i][r >>> 6] >>> r & 1L) == 0 ? 0.0 : 1.0;
+		case PRECISION_8:
+			return (probs8[i][r] & 0xff)/255.0;
+		case PRECISION_16:
+			return probs16[i][r]/65535.0;
+		case PRECISION_DOUBLE:
+			return probs[i][r];
+		default:
+			throw new IllegalStateException("Probabilities are not cached");
+		}
+	}
+
+	/**
+	 * Adds w times the cached probabilities of a node to sums. Used to compute the
+	 * weighted sum over a path for every row at once.
+	 *
+	 * @param i
+	 *   Index of the node
+	 * @param w
+	 *   Weight to apply to the node's probabilities
+	 * @param sums
+	 *   Per row sums, updated in place
+	 */
+	public void addWeighted(int i, double w, double[] sums){
+		switch(precision){
+		case PRECISION_LABEL:
+			long[] bits = labels[i];
+			for(int r = 0; r < numRows; ++r){
+				if((bits[r >>> 6] >>> r & 1L) != 0){
+					sums[r] += w;
+				}
+			}
+			break;
+		case PRECISION_8:
+			PathKernels.addScaled(w/255.0, probs8[i], sums, numRows);
+			break;
+		case PRECISION_16:
+			PathKernels.addScaled(w/65535.0, probs16[i], sums, numRows);
+			break;
+		case PRECISION_DOUBLE:
+			PathKernels.addScaled(w, probs[i], sums, numRows);
+			break;
+		default:
+			throw new IllegalStateException("Probabilities are not cached");
+		}
+	}
+
+	/**
+	 * Largest difference between a cached probability and the node's actual output.
+	 * A weighted path sum computed from the cache is within this times the total 
+	 * weight of the path. Labels are not an approximation of the probability, so 
+	 * their bound is the trivial 1.
+	 *
+	 * @return
+	 *   Maximum absolute error of getProbability()
+	 */
+	public double getMaxError(){
+		return maxError(this.precision);
+	}
+
+	/**
+	 * @see #getMaxError()
+	 */
+	public static double maxError(int precision){
+		switch(precision){
+		case PRECISION_DOUBLE:
+			return 0.0;
+		case PRECISION_16:
+			return 0.5/65535;
+		case PRECISION_8:
+			return 0.5/255;
+		default:
+			return 1.0;
+		}
+	}
+
+	/**
+	 * Chooses the smallest precision whose outputs are within the given tolerance.
+	 *
+	 * @param tolerance
+	 *   Largest acceptable error in each cached probability
+	 * @return
+	 *   One of the PRECISION constants
+	 */
+	public static int precisionFor(double tolerance){
+		int[] choices = {PRECISION_LABEL, PRECISION_8, PRECISION_16};
+		for(int i = 0; i < choices.length; ++i){
+			if(maxError(choices[i]) <= tolerance){
+				return choices[i];
+			}
+		}
+		return PRECISION_DOUBLE;
+	}
+
+	/**
+	 * Whether the probabilities, and not only correctness, were cached.
+	 */
+	public boolean hasProbabilities(){
+		return this.precision != PRECISION_NONE;
+	}
+
+	public int getPrecision(){
+		return this.precision;
+	}
+
+	/**
+	 * Gets the position of a node in this cache.
+	 *
+	 * @return
+	 *   Index of the node, or -1 if it is not in the cache
+	 */
+	public int indexOf(ClassifierNode n){
+		Integer i = index.get(n);
+		return i == null ? -1 : i.intValue();
+	}
+
+	/**
+	 * Whether this cache holds the outputs of these exact node objects on the same
+	 * rows. Nodes from another build may share IDs, so identity is compared. Data
+	 * other than the Instances the cache was built on is compared row by row, by the
+	 * hash of its values.
+	 *
+	 * @param nodes
+	 *   Nodes that need cached outputs
+	 * @param data
+	 *   Data the outputs are needed for
+	 * @return
+	 *   True if every node is in the cache
+	 */
+	public boolean covers(List<ClassifierNode> nodes, Instances data){
+
+		if(data.numInstances() != this.numRows){
+			return false;
+		}
+
+		if(data != this.data){
+			if(!Arrays.equals(hashRows(data), this.rowHashes)){
+				return false;
+			}
+			this.data = data;
+		}
+
+		for(int i = 0; i < nodes.size(); ++i){
+			int k = indexOf(nodes.get(i));
+			if(k < 0 || this.nodes[k] != nodes.get(i)){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Proportion of rows that both nodes classify incorrectly. Low values indicate
+	 * nodes that make their mistakes on different rows, and so complement each other.
+	 *
+	 * @param i
+	 *   Index of the first node
+	 * @param j
+	 *   Index of the second node
+	 * @return
+	 *   Double fault rate of the two nodes
+	 */
+	public double doubleFault(int i, int j){
+
+		long[] ci = correct[i];
+		long[] cj = correct[j];
+		int count = 0;
+
+		for(int w = 0; w < ci.length; ++w){
+			count += Long.bitCount(~(ci[w] | cj[w]) & mask(w));
+		}
+
+		return count/(double) numRows;
+	}
+
+	/**
+	 * Proportion of rows that exactly one of the two nodes classifies correctly. For
+	 * two class problems this is the rate at which the nodes disagree.
+	 *
+	 * @param i
+	 *   Index of the first node
+	 * @param j
+	 *   Index of the second node
+	 * @return
+	 *   Disagreement rate of the two nodes
+	 */
+	public double disagreement(int i, int j){
+
+		long[] ci = correct[i];
+		long[] cj = correct[j];
+		int count = 0;
+
+		for(int w = 0; w < ci.length; ++w){
+			count += Long.bitCount(ci[w] ^ cj[w]);
+		}
+
+		return count/(double) numRows;
+	}
+
+	/**
+	 * Mask selecting the bits of word w that correspond to rows.
+	 */
+	long mask(int w){
+		int used = numRows - (w << 6);
+		return used >= 64 ? -1L : (1L << used) - 1;
+	}
+
+	public int numRows(){
+		return this.numRows;
+	}
+
+	public int numNodes(){
+		return this.correct.length;
+	}
+}
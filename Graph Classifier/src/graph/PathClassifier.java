@@ -1,16 +1,18 @@
 package graph;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Vector;
+
+import org.jgrapht.graph.DefaultDirectedWeightedGraph;
 
 import weka.classifiers.AbstractClassifier;
-import weka.classifiers.evaluation.EvaluationUtils;
-import weka.classifiers.evaluation.Prediction;
 import weka.classifiers.functions.Logistic;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Utils;
 
 /**
  * Classifier that generates a classification for a data point by applying a logistic
@@ -61,12 +63,7 @@ public class PathClassifier extends AbstractClassifier implements Serializable{
 	 * @throws Exception 
 	 */
 	public double classifyInstance(Instance datum) throws Exception{
-		
-		Instance d = new DenseInstance(2);
-		d.setValue(0, this.sumOverPath(datum));
-		d.setValue(1, datum.classValue());
-		
-		return logistic.classifyInstance(d);
+		return Utils.maxIndex(this.distributionForInstance(datum));
 	}
 	
 	/**
@@ -88,28 +85,136 @@ public class PathClassifier extends AbstractClassifier implements Serializable{
 	 * @throws Exception
 	 */
 	public double evaluateOnData(Instances data) throws Exception{
-		
-		EvaluationUtils eval = new EvaluationUtils();
-
-		double right = 0, total = 0;
-
-		FastVector<Prediction> results = (FastVector<Prediction>) eval.getTestPredictions(this, data);
-
-		for(int i = 0; i < results.size(); ++i){
-			Prediction p = results.get(i);
-			if(p.predicted() == p.actual()){
-				right = right + 1;
-			}
-			total = total + 1;
-		}
-
-		return right/total;
+		return this.accuracyOnSums(this.sumOverPath(data), data);
 	}
 
 	/**
 	 * 
 	 */
 	public void buildClassifier(Instances data) throws Exception {
+		this.fitSums(this.sumOverPath(data), data);
+	}
+	
+	/**
+	 * Computes the weighted path sum of every row by applying the node classifiers.
+	 * 
+	 * @param data
+	 *   Rows to sum over
+	 * @return
+	 *   Path sum of each row
+	 * @throws Exception
+	 */
+	protected double[] sumOverPath(Instances data) throws Exception{
+		double[] sums = new double[data.numInstances()];
+		
+		for(int i = 0; i < data.numInstances(); ++i){
+			sums[i] = this.sumOverPath(data.get(i));
+		}
+		
+		return sums;
+	}
+	
+	/**
+	 * Builds the classifier using cached node outputs in place of applying the node
+	 * classifiers to every row.
+	 * 
+	 * @param data
+	 *   Training data, in the same row order as the cache
+	 * @param outputs
+	 *   Cached outputs of every node on the path
+	 * @throws Exception
+	 */
+	public void buildClassifier(Instances data, NodeOutputCache outputs) throws Exception {
+		this.fitSums(this.sumOverPath(outputs), data);
+	}
+	
+	/**
+	 * Evaluates the classifier using cached node outputs.
+	 * 
+	 * @param data
+	 *   Testing data, in the same row order as the cache
+	 * @param outputs
+	 *   Cached outputs of every node on the path
+	 * @return
+	 *   Accuracy on data
+	 * @throws Exception
+	 */
+	public double evaluateOnData(Instances data, NodeOutputCache outputs) throws Exception{
+		return this.accuracyOnSums(this.sumOverPath(outputs), data);
+	}
+	
+	/**
+	 * Computes the weighted path sum of every row from cached node outputs.
+	 * 
+	 * @param outputs
+	 *   Cached outputs of every node on the path
+	 * @return
+	 *   Path sum of each row of the cache, accurate to outputs.getMaxError() times
+	 *   the total weight of the path
+	 */
+	protected double[] sumOverPath(NodeOutputCache outputs){
+		double[] sums = new double[outputs.numRows()];
+		
+		for(int i = 0; i < this.edges.size(); ++i){
+			ClassifierNode c = this.edges.get(i).getSourceNode();
+			outputs.addWeighted(outputs.indexOf(c), c.getWeight(), sums);
+		}
+		
+		return sums;
+	}
+	
+	/**
+	 * Fits the logistic regression to precomputed path sums.
+	 * 
+	 * @param sums
+	 *   Path sum of each row of data
+	 * @param data
+	 *   Training data, providing the class of each row
+	 * @throws Exception
+	 */
+	protected void fitSums(double[] sums, Instances data) throws Exception{
+		
+		Instances sumData = makeSumsHeader(data.numInstances());
+		
+		for(int i = 0; i < data.numInstances(); ++i){
+			Instance sdatum = new DenseInstance(2);
+			
+			sdatum.setValue(0, sums[i]);
+			sdatum.setValue(1, data.get(i).classValue());
+			
+			sumData.add(sdatum);
+		}
+		
+		logistic = new Logistic();
+		logistic.buildClassifier(sumData);
+	}
+	
+	/**
+	 * Accuracy of the fitted logistic regression on precomputed path sums.
+	 * 
+	 * @param sums
+	 *   Path sum of each row of data
+	 * @param data
+	 *   Testing data, providing the class of each row
+	 * @return
+	 *   Proportion of rows classified correctly
+	 * @throws Exception
+	 */
+	protected double accuracyOnSums(double[] sums, Instances data) throws Exception{
+		
+		double[] coef = this.getLogisticCoefficients();
+		double[] classes = data.attributeToDoubleArray(data.classIndex());
+		
+		return (double) PathKernels.countCorrect(coef[0], coef[1], sums, classes, data.numInstances())/data.numInstances();
+	}
+	
+	/**
+	 * Creates the empty data set of path sums the logistic regression is fit to.
+	 * 
+	 * @param capacity
+	 *   Expected number of rows
+	 */
+	protected static Instances makeSumsHeader(int capacity){
 		
 		FastVector<String> classes = new FastVector<String>(2);
 		classes.add("0");
@@ -119,26 +224,117 @@ public class PathClassifier extends AbstractClassifier implements Serializable{
 		atts.add(new Attribute("sums"));
 		atts.add(new Attribute("class", classes));
 		
-		Instances sums = new Instances("sums", atts, data.numInstances());
+		Instances sums = new Instances("sums", atts, capacity);
 		sums.setClassIndex(1);
 		
-		for(int i = 0; i < data.numInstances(); ++i){
-			Instance datum = data.get(i);
-			double s = this.sumOverPath(datum);
-			double c = datum.classValue();
-			
-			Instance sdatum = new DenseInstance(2);
+		return sums;
+	}
+	
+	/**
+	 * Fits the two node path ci -> cj and measures its accuracy. This is the quantity
+	 * used to weight the edge between ci and cj in both directions.
+	 * 
+	 * @param ci
+	 *   First node on the path
+	 * @param cj
+	 *   Second node on the path
+	 * @param data
+	 *   Data used to fit and evaluate the path
+	 * @return
+	 *   Accuracy of the path on data
+	 * @throws Exception
+	 */
+	public static double scorePair(ClassifierNode ci, ClassifierNode cj, Instances data) throws Exception{
+		return scorePair(ci, cj, data, null);
+	}
+	
+	/**
+	 * Fits the two node path ci -> cj and measures its accuracy, using cached node
+	 * outputs when they are available.
+	 * 
+	 * @param outputs
+	 *   Cached outputs of ci and cj on data, or null to apply the node classifiers
+	 * @see #scorePair(ClassifierNode, ClassifierNode, Instances)
+	 */
+	public static double scorePair(ClassifierNode ci, ClassifierNode cj, Instances data, NodeOutputCache outputs) throws Exception{
+		return scorePair(ci, cj, data, outputs, null);
+	}
+	
+	/**
+	 * Fits the two node path ci -> cj and measures its accuracy, fitting its logistic 
+	 * regression by Newton's method from the coefficients held by fit. Passing the same
+	 * fit for every edge leaving ci warm starts each fit from the last, see LogisticFit.
+	 * 
+	 * @param fit
+	 *   Fit to start from, left holding the coefficients of this pair; null fits weka's
+	 *   Logistic from scratch
+	 * @see #scorePair(ClassifierNode, ClassifierNode, Instances, NodeOutputCache)
+	 */
+	public static double scorePair(ClassifierNode ci, ClassifierNode cj, Instances data, NodeOutputCache outputs, LogisticFit fit) throws Exception{
+		
+		//Edges only know their endpoints once added to a graph
+		DefaultDirectedWeightedGraph<ClassifierNode, ClassifierEdge> pair = new DefaultDirectedWeightedGraph<ClassifierNode, ClassifierEdge>(ClassifierEdge.class);
+		ClassifierNode sink = new ClassifierNode("t");
+		
+		pair.addVertex(ci);
+		pair.addVertex(cj);
+		pair.addVertex(sink);
+		
+		Vector<ClassifierEdge> edges = new Vector<ClassifierEdge>(2);
+		edges.add(pair.addEdge(ci, cj));
+		edges.add(pair.addEdge(cj, sink));
+		
+		PathClassifier pc = new PathClassifier(edges);
+		
+		if(fit != null){
+			double[] sums = outputs != null && outputs.hasProbabilities() ? pc.sumOverPath(outputs) : pc.sumOverPath(data);
+			double[] classes = data.attributeToDoubleArray(data.classIndex());
 			
-			sdatum.setValue(0, s);
-			sdatum.setValue(1, c);
+			fit.fit(sums, classes, sums.length);
 			
-			sums.add(sdatum);
+			return (double) PathKernels.countCorrect(fit.getIntercept(), fit.getSlope(), sums, classes, sums.length)/sums.length;
 		}
 		
+		if(outputs != null && outputs.hasProbabilities()){
+			double[] sums = pc.sumOverPath(outputs);
+			pc.fitSums(sums, data);
+			return pc.accuracyOnSums(sums, data);
+		}
 		
-		logistic = new Logistic();
-		logistic.buildClassifier(sums);
+		pc.buildClassifier(data);
+		return pc.evaluateOnData(data);
+	}
+	
+	/**
+	 * Gets the nodes whose outputs are summed by this path, in path order.
+	 * 
+	 * @return
+	 *   Source node of each edge on the path
+	 */
+	public List<ClassifierNode> getNodes(){
+		
+		Vector<ClassifierNode> nodes = new Vector<ClassifierNode>(this.edges.size());
+		
+		for(int i = 0; i < this.edges.size(); ++i){
+			nodes.add(this.edges.get(i).getSourceNode());
+		}
+		
+		return nodes;
+	}
+	
+	/**
+	 * Gets the fitted logistic regression as {intercept, slope}, such that the
+	 * probability of the first class is 1/(1 + exp(-(intercept + slope*sum))).
+	 * 
+	 * @return
+	 *   Coefficients of the logistic regression on the path sum
+	 */
+	public double[] getLogisticCoefficients(){
+		
+		double[][] coef = logistic.coefficients();
 		
+		//The sum is dropped as useless if it was constant on the training data
+		return new double[]{coef[0][0], coef.length > 1 ? coef[1][0] : 0.0};
 	}
 	
 	/**
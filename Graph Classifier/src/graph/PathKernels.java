@@ -0,0 +1,90 @@
+package graph;
+
+/**
+ * Arithmetic over whole columns of rows, used wherever a path is evaluated on many
+ * rows at once: accumulating weighted node outputs into path sums, applying the
+ * compiled logistic regression and counting correct predictions.
+ *
+ * These are plain scalar loops. Each is a single counted loop over primitive arrays
+ * with no object accesses, which keeps the rows of a path in contiguous arrays and
+ * leaves the JIT free to unroll, and where it can, vectorize them. Only addScaled()
+ * is a candidate for that: logistic() calls Math.exp() on every row and
+ * countCorrect() compares and selects on every row, so those two are not expected to
+ * run more than one row per instruction.
+ *
+ * @author mchristopher
+ *
+ */
+public final class PathKernels {
+
+	private PathKernels(){
+	}
+
+	/**
+	 * sums[r] += w*p[r] for the first n rows.
+	 */
+	public static void addScaled(double w, double[] p, double[] sums, int n){
+		for(int r = 0; r < n; ++r){
+			sums[r] += w*p[r];
+		}
+	}
+
+	/**
+	 * sums[r] += w*p[r] for the first n rows, with p holding unsigned 16 bit values.
+	 */
+	public static void addScaled(double w, char[] p, double[] sums, int n){
+		for(int r = 0; r < n; ++r){
+			sums[r] += w*p[r];
+		}
+	}
+
+	/**
+	 * sums[r] += w*p[r] for the first n rows, with p holding unsigned 8 bit values.
+	 */
+	public static void addScaled(double w, byte[] p, double[] sums, int n){
+		for(int r = 0; r < n; ++r){
+			sums[r] += w*(p[r] & 0xff);
+		}
+	}
+
+	/**
+	 * Applies the logistic regression {intercept, slope} to each path sum.
+	 *
+	 * @param sums
+	 *   Path sum of each row
+	 * @param out
+	 *   Probability of the first class for each row, may be the same array as sums
+	 * @param n
+	 *   Number of rows
+	 */
+	public static void logistic(double intercept, double slope, double[] sums, double[] out, int n){
+		for(int r = 0; r < n; ++r){
+			out[r] = 1.0/(1.0 + Math.exp(-(intercept + slope*sums[r])));
+		}
+	}
+
+	/**
+	 * Counts the rows classified correctly by the logistic regression {intercept, slope}.
+	 *
+	 * The first class is predicted exactly when its probability is at least one half,
+	 * which is when intercept + slope*sum is not negative, so no exponentials are needed.
+	 * Ties go to the first class, as with Utils.maxIndex().
+	 *
+	 * @param sums
+	 *   Path sum of each row
+	 * @param classes
+	 *   Class value (0 or 1) of each row
+	 * @param n
+	 *   Number of rows
+	 * @return
+	 *   Number of rows whose predicted class equals their class value
+	 */
+	public static int countCorrect(double intercept, double slope, double[] sums, double[] classes, int n){
+		int right = 0;
+		for(int r = 0; r < n; ++r){
+			boolean first = intercept + slope*sums[r] >= 0.0;
+			right += (first == (classes[r] == 0.0)) ? 1 : 0;
+		}
+		return right;
+	}
+}
@@ -0,0 +1,237 @@
+package graph;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Cross-validates a GraphClassifier or LayeredGraphClassifier while training a single
+ * pool of weak classifiers for every fold, rather than a new pool per fold.
+ *
+ * Each weak classifier is trained on a sample of the rows of only some of the folds,
+ * so it has never seen the rows of the other folds and can be used by the model of
+ * every one of them. Excluding half of the folds from each sample, about twice as many
+ * weak classifiers as in a single model are needed to give every fold a full pool. The
+ * classifiers are applied to the data once, and the outputs on each fold's training
+ * rows are selected from these rather than recomputed. Only the node weights, edges
+ * and path of each fold are fit on the fold's training data.
+ *
+ * Every sample is drawn with the template's fixed proportion p. Automatic choice of p
+ * is not used here: the pool is shared, so a single p would have to be chosen from
+ * rows that are test rows of some fold, and the estimate would no longer be held out.
+ *
+ * @author mchristopher
+ *
+ */
+public class PoolCrossValidation {
+
+	/** Number of folds excluded from each weak classifier's sample, 0 excludes half of them */
+	int excludedFolds = 0;
+
+	/** Number of weak classifiers trained by the last cross-validation */
+	int numTrained;
+
+	/** Time taken to train and apply the weak classifiers in the last cross-validation */
+	long poolMillis;
+
+	/** Time taken to build and evaluate the model of each fold in the last cross-validation */
+	long foldMillis;
+
+	/**
+	 * Cross-validates a model, as weka's Evaluation.crossValidateModel() does. The data
+	 * are shuffled and stratified with rand and split into folds the same way.
+	 *
+	 * @param template
+	 *   Unbuilt model whose settings are used, it is copied for each fold. Its fixed
+	 *   proportion is used even if automatic proportion is enabled.
+	 * @param data
+	 *   Data to cross-validate on
+	 * @param numFolds
+	 *   Number of folds
+	 * @param rand
+	 *   Random generator used to split the data and draw the samples
+	 * @return
+	 *   Evaluation of the predictions of each fold's model on its test rows
+	 * @throws Exception
+	 */
+	public Evaluation crossValidate(GraphClassifier template, Instances data, int numFolds, Random rand) throws Exception{
+
+		Instances randData = new Instances(data);
+		randData.randomize(rand);
+		if(randData.classAttribute().isNominal()){
+			randData.stratify(numFolds);
+		}
+
+		int n = randData.numInstances();
+		int poolSize = template.poolSize();
+		int excluded = this.excludedFolds > 0 ? Math.min(this.excludedFolds, numFolds - 1) : Math.max(1, numFolds/2);
+
+		//Fold of each row, in the blocks used by Instances.trainCV() and testCV()
+		int[] fold = new int[n];
+		for(int f = 0; f < numFolds; ++f){
+			int first = firstRow(n, numFolds, f);
+			int last = firstRow(n, numFolds, f + 1);
+			for(int r = first; r < last; ++r){
+				fold[r] = f;
+			}
+		}
+
+		long start = System.currentTimeMillis();
+
+		GraphClassifier trainer = (GraphClassifier) AbstractClassifier.makeCopy(template);
+		trainer.trainData = randData;
+		trainer.setAutoProportion(false);
+
+		//Train weak classifiers, each excluding the folds that have the fewest so far
+		Vector<ClassifierNode> nodes = new Vector<ClassifierNode>();
+		Vector<boolean[]> serves = new Vector<boolean[]>();
+		int[] coverage = new int[numFolds];
+
+		while(min(coverage) < poolSize){
+
+			double[] order = new double[numFolds];
+			for(int f = 0; f < numFolds; ++f){
+				order[f] = coverage[f] + rand.nextDouble();
+			}
+			int[] sorted = Utils.sort(order);
+
+			boolean[] held = new boolean[numFolds];
+			for(int k = 0; k < excluded; ++k){
+				held[sorted[k]] = true;
+				++coverage[sorted[k]];
+			}
+
+			int count = 0;
+			for(int r = 0; r < n; ++r){
+				count += held[fold[r]] ? 0 : 1;
+			}
+			int[] rows = new int[count];
+			for(int r = 0, k = 0; r < n; ++r){
+				if(!held[fold[r]]){
+					rows[k++] = r;
+				}
+			}
+
+			//Sized as for a model trained on a single fold's training rows
+			int numRows = (int) (n*(numFolds - 1.0)/numFolds*trainer.getProportion());
+			nodes.add(trainer.trainNodeOnRows(nodes.size(), "cv" + nodes.size(), new Random(rand.nextInt()), Math.max(numRows, 1), rows));
+			serves.add(held);
+		}
+
+		NodeOutputCache outputs = new NodeOutputCache(nodes, randData, template.getOutputPrecision());
+
+		this.numTrained = nodes.size();
+		this.poolMillis = System.currentTimeMillis() - start;
+		if(template.getDebug()){
+			System.out.println("Trained " + numTrained + " weak classifiers for " + numFolds + " folds of " + poolSize);
+		}
+
+		start = System.currentTimeMillis();
+		Evaluation eval = new Evaluation(randData);
+
+		for(int f = 0; f < numFolds; ++f){
+
+			Instances train = randData.trainCV(numFolds, f);
+			Instances test = randData.testCV(numFolds, f);
+
+			int[] rows = new int[train.numInstances()];
+			for(int r = 0, k = 0; r < n; ++r){
+				if(fold[r] != f){
+					rows[k++] = r;
+				}
+			}
+
+			GraphClassifier model = (GraphClassifier) AbstractClassifier.makeCopy(template);
+			model.caps = trainer.caps;
+
+			//The first poolSize classifiers that never saw this fold, weighted on its training rows
+			List<ClassifierNode> from = new Vector<ClassifierNode>();
+			List<ClassifierNode> foldNodes = new Vector<ClassifierNode>();
+			for(int i = 0; i < nodes.size() && from.size() < poolSize; ++i){
+				if(serves.get(i)[f]){
+					from.add(nodes.get(i));
+					foldNodes.add(nodes.get(i).reweighted(model.getClassifierName(foldNodes.size()), 0.0));
+				}
+			}
+
+			NodeOutputCache foldOutputs = outputs.select(from, foldNodes, rows);
+			for(int k = 0; k < foldNodes.size(); ++k){
+				foldNodes.get(k).weight = foldOutputs.accuracy(k);
+			}
+
+			model.setNodeOutputs(foldOutputs);
+			model.setAutoProportion(false);
+			model.setProportion(trainer.getProportion());
+			model.buildFromNodes(train, foldNodes);
+
+			eval.evaluateModel(model, test);
+		}
+
+		this.foldMillis = System.currentTimeMillis() - start;
+
+		return eval;
+	}
+
+	/**
+	 * First row of a fold, as split by Instances.testCV().
+	 */
+	static int firstRow(int n, int numFolds, int f){
+		return f*(n/numFolds) + Math.min(f, n % numFolds);
+	}
+
+	static int min(int[] values){
+		int m = Integer.MAX_VALUE;
+		for(int i = 0; i < values.length; ++i){
+			m = Math.min(m, values[i]);
+		}
+		return m;
+	}
+
+	//Getters/setters
+	public void setExcludedFolds(int excludedFolds){
+		this.excludedFolds = excludedFolds;
+	}
+
+	public int getExcludedFolds(){
+		return this.excludedFolds;
+	}
+
+	public int getNumTrained(){
+		return this.numTrained;
+	}
+
+	public long getPoolMillis(){
+		return this.poolMillis;
+	}
+
+	public long getFoldMillis(){
+		return this.foldMillis;
+	}
+
+	/**
+	 * Testing method.
+	 *
+	 * @param args
+	 *   args[0] should be path to data file (csv or arff) on which to test.
+	 */
+	public static void main(String args[]) throws Exception{
+
+		Instances data = new DataSource(args[0]).getDataSet();
+		data.setClassIndex(data.numAttributes() - 1);
+
+		PoolCrossValidation cv = new PoolCrossValidation();
+
+		GraphClassifier gc = new GraphClassifier(10, "weka.classifiers.functions.Logistic", null);
+		Evaluation eval = cv.crossValidate(gc, data, 10, new Random(1));
+		System.out.println("Graph: " + eval.pctCorrect() + " % (" + cv.getPoolMillis() + " ms pool, " + cv.getFoldMillis() + " ms folds)");
+
+		LayeredGraphClassifier lc = new LayeredGraphClassifier(3, 4, "weka.classifiers.functions.Logistic", null);
+		eval = cv.crossValidate(lc, data, 10, new Random(1));
+		System.out.println("Layered: " + eval.pctCorrect() + " % (" + cv.getPoolMillis() + " ms pool, " + cv.getFoldMillis() + " ms folds)");
+	}
+}
@@ -0,0 +1,277 @@
+package graph;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Bounded cache of class probabilities, keyed by the attribute values of a data point
+ * and the version of the model that scored it. Enabled with
+ * GraphClassifier.setPredictionCache().
+ *
+ * Keys hash the attribute values other than the class, but hits are only returned
+ * for exactly equal values, so a hash collision can never return the prediction of
+ * another data point. Each compiled path of a model has its own version number, so
+ * entries of a model that has been rebuilt, reconfigured or swapped out are simply
+ * never hit again and age out.
+ *
+ * Entries live in a ConcurrentHashMap and are evicted without any global lock: new
+ * entries join a lock free queue, and once the cache is over its size the oldest
+ * entry is evicted unless it was hit since it last reached the front of the queue, in
+ * which case it goes to the back (second chance, an approximation of least recently
+ * used). Entries older than the time to live, if one is set, are dropped when next
+ * looked up.
+ *
+ * @author mchristopher
+ *
+ */
+public class PredictionCache {
+
+	/** Largest number of entries kept */
+	final int maxEntries;
+
+	/** Longest time an entry is kept in nanoseconds, 0 to keep entries until evicted */
+	final long ttlNanos;
+
+	/** Cached class probabilities */
+	final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+	/** Entries in the order they are considered for eviction */
+	final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	/** Number of entries in the map, kept separately since counting a ConcurrentHashMap is slow */
+	final AtomicInteger size = new AtomicInteger();
+
+	final AtomicLong hits = new AtomicLong();
+
+	final AtomicLong misses = new AtomicLong();
+
+	/** Number of entries evicted to keep within maxEntries */
+	final AtomicLong evictions = new AtomicLong();
+
+	/** Number of entries dropped for being older than the time to live */
+	final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *   Largest number of data points whose probabilities are kept
+	 */
+	public PredictionCache(int maxEntries){
+		this(maxEntries, 0);
+	}
+
+	/**
+	 * @param maxEntries
+	 *   Largest number of data points whose probabilities are kept
+	 * @param ttlMillis
+	 *   Longest time to keep an entry in milliseconds, 0 to keep entries until evicted
+	 */
+	public PredictionCache(int maxEntries, long ttlMillis){
+		if(maxEntries < 1){
+			throw new IllegalArgumentException("Cache must hold at least one entry: " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis*1000000L;
+	}
+
+	/**
+	 * Makes the key of a data point scored by a model version.
+	 *
+	 * @param datum
+	 *   Data point, its class value is ignored
+	 * @param version
+	 *   Version of the model scoring it
+	 */
+	public static Key key(Instance datum, long version){
+
+		double[] values = datum.toDoubleArray();
+		if(datum.classIndex() >= 0){
+			values[datum.classIndex()] = 0.0;
+		}
+
+		return new Key(values, version);
+	}
+
+	/**
+	 * Looks up the class probabilities of a data point.
+	 *
+	 * @return
+	 *   A copy of the cached probabilities, or null on a miss
+	 */
+	public double[] get(Key key){
+
+		Entry e = entries.get(key);
+
+		if(e != null && ttlNanos > 0 && System.nanoTime() - e.created > ttlNanos){
+			if(this.remove(e)){
+				expirations.incrementAndGet();
+			}
+			e = null;
+		}
+
+		if(e == null){
+			misses.incrementAndGet();
+			return null;
+		}
+
+		e.referenced = true;
+		hits.incrementAndGet();
+
+		return e.dist.clone();
+	}
+
+	/**
+	 * Caches the class probabilities of a data point, evicting entries if the cache is
+	 * full. A data point already cached keeps its entry.
+	 */
+	public void put(Key key, double[] dist){
+
+		Entry e = new Entry(key, dist.clone());
+
+		if(entries.putIfAbsent(key, e) != null){
+			return;
+		}
+		size.incrementAndGet();
+		queue.add(e);
+
+		while(size.get() > maxEntries){
+			Entry oldest = queue.poll();
+			if(oldest == null){
+				break;
+			}
+
+			if(oldest.referenced && entries.get(oldest.key) == oldest){
+				oldest.referenced = false;
+				queue.add(oldest);
+			}
+			else if(this.remove(oldest)){
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry if it is still the one cached for its key.
+	 *
+	 * @return
+	 *   True if this call removed it
+	 */
+	boolean remove(Entry e){
+		if(entries.remove(e.key, e)){
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes every entry. Metrics are kept, see resetStats().
+	 */
+	public void clear(){
+		Entry e;
+		while((e = queue.poll()) != null){
+			this.remove(e);
+		}
+	}
+
+	public void resetStats(){
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+		expirations.set(0);
+	}
+
+	public int size(){
+		return size.get();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	public long getExpirations(){
+		return expirations.get();
+	}
+
+	/**
+	 * Fraction of lookups that were hits, 0 if there have been none.
+	 */
+	public double getHitRate(){
+		long h = hits.get();
+		long n = h + misses.get();
+		return n > 0 ? h/(double) n : 0.0;
+	}
+
+	public int getMaxEntries(){
+		return this.maxEntries;
+	}
+
+	public String toString(){
+		return "Prediction cache: " + size() + " of " + maxEntries + " entries, " + getHits() + " hits, "
+			+ getMisses() + " misses (" + Utils.doubleToString(100.0*getHitRate(), 2) + "% hit rate), "
+			+ getEvictions() + " evicted, " + getExpirations() + " expired";
+	}
+
+	/**
+	 * Attribute values of a data point and the version of the model scoring it.
+	 */
+	public static class Key{
+
+		final double[] values;
+
+		final long version;
+
+		final int hash;
+
+		Key(double[] values, long version){
+			this.values = values;
+			this.version = version;
+			this.hash = 31*Arrays.hashCode(values) + (int) (version ^ (version >>> 32));
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key)){
+				return false;
+			}
+			Key k = (Key) o;
+			return hash == k.hash && version == k.version && Arrays.equals(values, k.values);
+		}
+	}
+
+	/**
+	 * Cached probabilities of one key.
+	 */
+	static class Entry{
+
+		final Key key;
+
+		final double[] dist;
+
+		/** Time the entry was made, from System.nanoTime() */
+		final long created = System.nanoTime();
+
+		/** Whether the entry was hit since it was last considered for eviction */
+		volatile boolean referenced;
+
+		Entry(Key key, double[] dist){
+			this.key = key;
+			this.dist = dist;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package graph;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * View of a data point restricted to a subset of its attributes. Values are read from
+ * the underlying data point when requested, so projecting a data set costs one small
+ * object per row rather than a copy of the selected values, as the weka Remove filter
+ * would make.
+ *
+ * The view is read only in effect: the first change made to it copies the selected
+ * values into this instance, which from then on behaves as a DenseInstance, so the
+ * underlying data point is never modified.
+ *
+ * @author mchristopher
+ *
+ */
+public class ProjectedInstance extends DenseInstance {
+
+	/** Data point the values are read from, null once they have been copied */
+	Instance base;
+
+	/** Attribute of the base data point for each attribute of the view */
+	int[] attributes;
+
+	/**
+	 * Creates a view of a data point.
+	 *
+	 * @param base
+	 *   Data point to read values from
+	 * @param attributes
+	 *   Attribute of base for each attribute of the view
+	 */
+	public ProjectedInstance(Instance base, int[] attributes){
+		super(base.weight(), null);
+		this.base = base;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Creates an empty data set whose attributes are the given attributes of data, in
+	 * the same order. The class attribute is kept as the class if it is selected.
+	 *
+	 * @param data
+	 *   Data set to select the attributes from
+	 * @param attributes
+	 *   Indices of the attributes to select
+	 * @param capacity
+	 *   Expected number of rows
+	 * @return
+	 *   Header for views of the rows of data
+	 */
+	public static Instances header(Instances data, int[] attributes, int capacity){
+
+		FastVector<Attribute> atts = new FastVector<Attribute>(attributes.length);
+		int classIndex = -1;
+
+		for(int a = 0; a < attributes.length; ++a){
+			atts.add((Attribute) data.attribute(attributes[a]).copy());
+			if(attributes[a] == data.classIndex()){
+				classIndex = a;
+			}
+		}
+
+		Instances header = new Instances(data.relationName() + "-projected", atts, capacity);
+		header.setClassIndex(classIndex);
+
+		return header;
+	}
+
+	/**
+	 * Copies the selected values, after which changes no longer affect the base.
+	 */
+	void materialize(){
+		if(base != null){
+			m_AttValues = this.toDoubleArray();
+			base = null;
+		}
+	}
+
+	public double value(int attIndex){
+		return base != null ? base.value(attributes[attIndex]) : super.value(attIndex);
+	}
+
+	public double valueSparse(int indexOfIndex){
+		return this.value(indexOfIndex);
+	}
+
+	public int numAttributes(){
+		return base != null ? attributes.length : super.numAttributes();
+	}
+
+	public int numValues(){
+		return this.numAttributes();
+	}
+
+	public double[] toDoubleArray(){
+
+		if(base == null){
+			return super.toDoubleArray();
+		}
+
+		double[] values = new double[attributes.length];
+		for(int a = 0; a < values.length; ++a){
+			values[a] = base.value(attributes[a]);
+		}
+		return values;
+	}
+
+	public Object copy(){
+
+		if(base == null){
+			return super.copy();
+		}
+
+		ProjectedInstance c = new ProjectedInstance(base, attributes);
+		c.setWeight(this.weight());
+		c.m_Dataset = m_Dataset;
+		return c;
+	}
+
+	public void setValue(int attIndex, double value){
+		this.materialize();
+		super.setValue(attIndex, value);
+	}
+
+	public void setValueSparse(int indexOfIndex, double value){
+		this.materialize();
+		super.setValueSparse(indexOfIndex, value);
+	}
+
+	public void replaceMissingValues(double[] array){
+		this.materialize();
+		super.replaceMissingValues(array);
+	}
+
+	public String toStringNoWeight(int afterDecimalPoint){
+		this.materialize();
+		return super.toStringNoWeight(afterDecimalPoint);
+	}
+
+	protected void forceDeleteAttributeAt(int position){
+		this.materialize();
+		super.forceDeleteAttributeAt(position);
+	}
+
+	protected void forceInsertAttributeAt(int position){
+		this.materialize();
+		super.forceInsertAttributeAt(position);
+	}
+}
@@ -0,0 +1,277 @@
+package graph;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.jgrapht.DirectedGraph;
+
+/**
+ * Shortest path search for sparse graphs with possibly negative edge weights.
+ *
+ * Like BellmanFordShortestPath this finds the cheapest path using at most a fixed
+ * number of edges, so negative cycles only make paths longer rather than unbounded.
+ * Instead of relaxing every edge on each pass, only the edges leaving vertices whose
+ * cost improved on the previous pass are relaxed. The graph is copied into arrays
+ * indexed by vertex, so a pass costs time proportional to the out degree of the
+ * improved vertices rather than the total number of vertices times edges.
+ *
+ * @author mchristopher
+ *
+ * @param <V>
+ *   Vertex type
+ * @param <E>
+ *   Edge type
+ */
+public class SparsePathSearch<V, E> {
+
+	/** Graph being searched */
+	DirectedGraph<V, E> graph;
+
+	/** Vertex at each index */
+	List<V> vertices;
+
+	/** Index of each vertex */
+	HashMap<V, Integer> index;
+
+	/** Index of the target of each edge leaving a vertex */
+	int[][] targets;
+
+	/** Weight of each edge leaving a vertex */
+	double[][] weights;
+
+	/**
+	 * Creates a search over a snapshot of the given graph. Changes made to the graph
+	 * afterwards are not seen by the search, except through replaceVertex() and
+	 * replaceVertices().
+	 *
+	 * @param graph
+	 *   Graph to search
+	 */
+	public SparsePathSearch(DirectedGraph<V, E> graph){
+
+		this.graph = graph;
+		this.vertices = new ArrayList<V>(graph.vertexSet());
+		this.index = new HashMap<V, Integer>();
+
+		int n = vertices.size();
+		for(int i = 0; i < n; ++i){
+			index.put(vertices.get(i), i);
+		}
+
+		targets = new int[n][];
+		weights = new double[n][];
+
+		for(int i = 0; i < n; ++i){
+			this.copyEdges(i);
+		}
+	}
+
+	/**
+	 * Updates the snapshot after a vertex has been replaced in the graph by another,
+	 * with its own edges. Only the edges of the replacement and of the vertices with
+	 * an edge to either vertex are copied again, the rest of the snapshot is kept.
+	 *
+	 * @param old
+	 *   Vertex removed from the graph
+	 * @param replacement
+	 *   Vertex added in its place, with all of its edges
+	 */
+	public void replaceVertex(V old, V replacement){
+		this.replaceVertices(Collections.singletonList(old), Collections.singletonList(replacement));
+	}
+
+	/**
+	 * Updates the snapshot after several vertices have been replaced in the graph, as
+	 * replaceVertex() does for one. Every replacement is indexed before any edges are
+	 * copied, since replacements may have edges to each other.
+	 *
+	 * @param old
+	 *   Vertices removed from the graph
+	 * @param replacements
+	 *   Vertices added in their place, in the same order, with all of their edges
+	 */
+	public void replaceVertices(List<V> old, List<V> replacements){
+
+		boolean[] stale = new boolean[vertices.size()];
+		boolean[] replaced = new boolean[vertices.size()];
+
+		//Index every replacement first; a replacement may be equal to the vertex it replaces
+		int[] v = new int[old.size()];
+		for(int m = 0; m < v.length; ++m){
+			v[m] = index.remove(old.get(m));
+		}
+		for(int m = 0; m < v.length; ++m){
+			index.put(replacements.get(m), v[m]);
+			vertices.set(v[m], replacements.get(m));
+			stale[v[m]] = true;
+			replaced[v[m]] = true;
+		}
+
+		//Vertices with an edge to an old vertex
+		for(int u = 0; u < targets.length; ++u){
+			for(int k = 0; k < targets[u].length && !stale[u]; ++k){
+				stale[u] = replaced[targets[u][k]];
+			}
+		}
+
+		//Vertices with an edge to a replacement
+		for(int m = 0; m < v.length; ++m){
+			Iterator<E> it = graph.incomingEdgesOf(replacements.get(m)).iterator();
+			while(it.hasNext()){
+				stale[index.get(graph.getEdgeSource(it.next()))] = true;
+			}
+		}
+
+		for(int u = 0; u < stale.length; ++u){
+			if(stale[u]){
+				this.copyEdges(u);
+			}
+		}
+	}
+
+	/**
+	 * Copies the edges leaving vertex i from the graph into the snapshot.
+	 */
+	void copyEdges(int i){
+
+		int deg = graph.outDegreeOf(vertices.get(i));
+		targets[i] = new int[deg];
+		weights[i] = new double[deg];
+
+		Iterator<E> it = graph.outgoingEdgesOf(vertices.get(i)).iterator();
+		for(int k = 0; k < deg; ++k){
+			E e = it.next();
+			targets[i][k] = index.get(graph.getEdgeTarget(e));
+			weights[i][k] = graph.getEdgeWeight(e);
+		}
+	}
+
+	/**
+	 * Finds the cheapest path from start to end using at most one less edge than the
+	 * number of vertices, matching BellmanFordShortestPath.findPathBetween().
+	 *
+	 * @return
+	 *   Edges on the path, or null if end cannot be reached
+	 */
+	public List<E> findPathBetween(V start, V end){
+		return findPathBetween(start, end, vertices.size() - 1);
+	}
+
+	/**
+	 * Finds the cheapest path from start to end using at most maxHops edges.
+	 *
+	 * @param start
+	 *   First vertex on the path
+	 * @param end
+	 *   Last vertex on the path
+	 * @param maxHops
+	 *   Largest number of edges allowed on the path
+	 * @return
+	 *   Edges on the path, or null if end cannot be reached
+	 */
+	public List<E> findPathBetween(V start, V end, int maxHops){
+
+		int n = vertices.size();
+		int s = index.get(start);
+		int t = index.get(end);
+
+		//Each improvement to a vertex's cost is recorded along with the record it
+		//extends, so paths found on earlier passes stay intact
+		GrowableInts recVertex = new GrowableInts();
+		GrowableInts recPrev = new GrowableInts();
+
+		double[] cost = new double[n];
+		int[] best = new int[n];
+		for(int i = 0; i < n; ++i){
+			cost[i] = Double.POSITIVE_INFINITY;
+			best[i] = -1;
+		}
+
+		cost[s] = 0.0;
+		best[s] = recVertex.add(s);
+		recPrev.add(-1);
+
+		int[] frontier = {s};
+		boolean[] improved = new boolean[n];
+
+		for(int hop = 0; hop < maxHops && frontier.length > 0; ++hop){
+
+			//Costs and records as of the end of the previous pass
+			double[] frontierCost = new double[frontier.length];
+			int[] frontierRec = new int[frontier.length];
+			for(int f = 0; f < frontier.length; ++f){
+				frontierCost[f] = cost[frontier[f]];
+				frontierRec[f] = best[frontier[f]];
+			}
+
+			GrowableInts next = new GrowableInts();
+
+			for(int f = 0; f < frontier.length; ++f){
+				int u = frontier[f];
+
+				for(int k = 0; k < targets[u].length; ++k){
+					int v = targets[u][k];
+					double c = frontierCost[f] + weights[u][k];
+
+					if(c < cost[v]){
+						cost[v] = c;
+						best[v] = recVertex.add(v);
+						recPrev.add(frontierRec[f]);
+
+						if(!improved[v]){
+							improved[v] = true;
+							next.add(v);
+						}
+					}
+				}
+			}
+
+			frontier = new int[next.size];
+			for(int f = 0; f < next.size; ++f){
+				frontier[f] = next.get(f);
+				improved[frontier[f]] = false;
+			}
+		}
+
+		if(best[t] < 0){
+			return null;
+		}
+
+		LinkedList<E> path = new LinkedList<E>();
+		for(int r = best[t]; recPrev.get(r) >= 0; r = recPrev.get(r)){
+			V from = vertices.get(recVertex.get(recPrev.get(r)));
+			V to = vertices.get(recVertex.get(r));
+			path.addFirst(graph.getEdge(from, to));
+		}
+
+		return path;
+	}
+
+	/**
+	 * Minimal growable array of ints.
+	 */
+	static class GrowableInts{
+
+		int[] values = new int[64];
+
+		int size = 0;
+
+		/** @return index of the added value */
+		int add(int v){
+			if(size == values.length){
+				int[] grown = new int[2*values.length];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size] = v;
+			return size++;
+		}
+
+		int get(int i){
+			return values[i];
+		}
+	}
+}
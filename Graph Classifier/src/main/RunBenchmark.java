@@ -0,0 +1,165 @@
+package main;
+
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+
+import graph.GraphClassifier;
+import graph.LayeredGraphClassifier;
+import weka.core.Instances;
+import weka.core.Utils;
+
+
+/**
+ * Measures how GraphClassifier and LayeredGraphClassifier scale with data size,
+ * node count and layer shape, using synthetic data sets. One CSV row is written per
+ * configuration, so runs can be compared to catch regressions.
+ */
+public class RunBenchmark {
+
+	/** Training set sizes to generate */
+	public static final int[] ROWS = {1000, 10000, 50000};
+
+	/** Number of attributes in each generated data set */
+	public static final int ATTRIBUTES = 20;
+
+	/** Number of rows in each generated test set, also used for inference timing */
+	public static final int TEST_ROWS = 2000;
+
+	/** Number of classifiers in each complete graph */
+	public static final int[] GRAPH_SIZES = {5, 10, 20};
+
+	/** {numLayers, numClassifiersPerLayer} of each layered graph */
+	public static final int[][] LAYER_SHAPES = {{2, 5}, {3, 5}, {4, 5}, {3, 10}};
+
+	public static final String HEADER = "model,rows,attributes,nodes,layers,width,buildMillis,peakHeapMB,accuracy,rowsPerSecond,latencyP50Micros,latencyP99Micros";
+
+	/**
+	 * @param args
+	 *   args[0] is the CSV file to write results to, args[1] optionally the weak
+	 *   classifier class name
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String classifier = args.length > 1 ? args[1] : "weka.classifiers.functions.Logistic";
+
+		PrintWriter csv = new PrintWriter(new FileWriter(args[0]));
+		csv.println(HEADER);
+
+		for(int r = 0; r < ROWS.length; ++r){
+
+			SyntheticData gen = new SyntheticData();
+			gen.setRows(ROWS[r]);
+			gen.setAttributes(ATTRIBUTES);
+			Instances train = gen.generate();
+
+			gen.setRows(TEST_ROWS);
+			gen.setSeed(2);
+			Instances test = gen.generate();
+
+			for(int i = 0; i < GRAPH_SIZES.length; ++i){
+				GraphClassifier gc = new GraphClassifier(GRAPH_SIZES[i], classifier, null);
+				csv.println(run("graph", gc, 1, GRAPH_SIZES[i], train, test));
+				csv.flush();
+			}
+
+			for(int i = 0; i < LAYER_SHAPES.length; ++i){
+				LayeredGraphClassifier lc = new LayeredGraphClassifier(LAYER_SHAPES[i][0], LAYER_SHAPES[i][1], classifier, null);
+				csv.println(run("layered", lc, LAYER_SHAPES[i][0], LAYER_SHAPES[i][1], train, test));
+				csv.flush();
+			}
+		}
+
+		csv.close();
+	}
+
+	/**
+	 * Builds and times a single configuration.
+	 *
+	 * @return
+	 *   CSV row of results
+	 */
+	static String run(String model, GraphClassifier gc, int layers, int width, Instances train, Instances test) throws Exception {
+
+		System.err.println("Benchmarking " + model + " " + layers + "x" + width + " on " + train.numInstances() + " rows");
+
+		//The classifiers report every edge on stdout, which would dominate the timings
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream(){
+			public void write(int b){
+			}
+		}));
+
+		long buildMillis;
+		double peakHeap;
+		try{
+			System.gc();
+			resetPeakHeap();
+
+			long start = System.currentTimeMillis();
+			gc.buildClassifier(train);
+			buildMillis = System.currentTimeMillis() - start;
+
+			peakHeap = peakHeap()/(1024.0*1024.0);
+		}
+		finally{
+			System.setOut(stdout);
+		}
+
+		//Warm up before timing inference
+		double right = 0;
+		for(int i = 0; i < test.numInstances(); ++i){
+			if(Utils.maxIndex(gc.distributionForInstance(test.get(i))) == test.get(i).classValue()){
+				right = right + 1;
+			}
+		}
+
+		long[] latency = new long[test.numInstances()];
+		long start = System.nanoTime();
+		for(int i = 0; i < test.numInstances(); ++i){
+			long t = System.nanoTime();
+			gc.distributionForInstance(test.get(i));
+			latency[i] = System.nanoTime() - t;
+		}
+		long total = System.nanoTime() - start;
+
+		Arrays.sort(latency);
+
+		return model + "," + train.numInstances() + "," + (train.numAttributes() - 1) + "," + gc.poolSize() + "," + layers + "," + width + ","
+			+ buildMillis + "," + peakHeap + "," + (right/test.numInstances()) + ","
+			+ (test.numInstances()*1e9/total) + ","
+			+ (latency[latency.length/2]/1000.0) + ","
+			+ (latency[(int) (latency.length*0.99)]/1000.0);
+	}
+
+	static void resetPeakHeap(){
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for(int i = 0; i < pools.size(); ++i){
+			if(pools.get(i).getType() == MemoryType.HEAP){
+				pools.get(i).resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Sum of the peak usage of each heap pool since the last reset.
+	 */
+	static long peakHeap(){
+		long peak = 0;
+		List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+		for(int i = 0; i < pools.size(); ++i){
+			if(pools.get(i).getType() == MemoryType.HEAP){
+				peak += pools.get(i).getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+}
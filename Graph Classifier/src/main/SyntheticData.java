@@ -0,0 +1,156 @@
+package main;
+
+import java.io.File;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffSaver;
+
+/**
+ * Generates synthetic binary classification data sets of any size.
+ *
+ * Each row's class is drawn with the given probability of being positive. The
+ * informative attributes are normally distributed around a class dependent mean,
+ * the rest are pure noise. A proportion of the labels is then flipped at random.
+ */
+public class SyntheticData {
+
+	/** Number of rows to generate */
+	int rows = 10000;
+
+	/** Number of numeric attributes, not counting the class */
+	int attributes = 10;
+
+	/** Number of attributes that depend on the class */
+	int informative = 5;
+
+	/** Distance between the class means of each informative attribute, in standard deviations */
+	double separation = 1.0;
+
+	/** Proportion of labels flipped after generation */
+	double noise = 0.05;
+
+	/** Probability of a row belonging to the positive class, sets the class imbalance */
+	double positiveRate = 0.5;
+
+	/** Seed for drawing rows */
+	long seed = 1;
+
+	/** Seed for drawing the class means, shared by train and test sets of the same problem */
+	long modelSeed = 0;
+
+	/**
+	 * Generates a data set with the current settings. The class is the last attribute.
+	 *
+	 * @return
+	 *   The generated data
+	 */
+	public Instances generate(){
+
+		Random rand = new Random(seed);
+		Random model = new Random(modelSeed);
+
+		FastVector<Attribute> atts = new FastVector<Attribute>();
+		for(int a = 0; a < attributes; ++a){
+			atts.add(new Attribute("a" + a));
+		}
+
+		FastVector<String> classes = new FastVector<String>(2);
+		classes.add("0");
+		classes.add("1");
+		atts.add(new Attribute("class", classes));
+
+		Instances data = new Instances("synthetic-" + rows + "x" + attributes, atts, rows);
+		data.setClassIndex(attributes);
+
+		//Random direction for each informative attribute's class mean
+		double[] shift = new double[attributes];
+		for(int a = 0; a < Math.min(informative, attributes); ++a){
+			shift[a] = model.nextBoolean() ? separation : -separation;
+		}
+
+		for(int r = 0; r < rows; ++r){
+
+			int y = rand.nextDouble() < positiveRate ? 1 : 0;
+
+			double[] values = new double[attributes + 1];
+			for(int a = 0; a < attributes; ++a){
+				values[a] = rand.nextGaussian() + (y == 1 ? shift[a]/2 : -shift[a]/2);
+			}
+
+			if(rand.nextDouble() < noise){
+				y = 1 - y;
+			}
+			values[attributes] = y;
+
+			Instance datum = new DenseInstance(1.0, values);
+			data.add(datum);
+		}
+
+		return data;
+	}
+
+	//Getters/setters
+	public void setRows(int rows){
+		this.rows = rows;
+	}
+
+	public void setAttributes(int attributes){
+		this.attributes = attributes;
+	}
+
+	public void setInformative(int informative){
+		this.informative = informative;
+	}
+
+	public void setSeparation(double separation){
+		this.separation = separation;
+	}
+
+	public void setNoise(double noise){
+		this.noise = noise;
+	}
+
+	public void setPositiveRate(double rate){
+		this.positiveRate = rate;
+	}
+
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+
+	public void setModelSeed(long seed){
+		this.modelSeed = seed;
+	}
+
+	/**
+	 * Writes a generated data set to an arff file.
+	 *
+	 * @param args
+	 *   args[0] is the output file, followed by optional rows, attributes, noise and
+	 *   positive rate
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		SyntheticData gen = new SyntheticData();
+		if(args.length > 1)
+			gen.setRows(Integer.parseInt(args[1]));
+		if(args.length > 2)
+			gen.setAttributes(Integer.parseInt(args[2]));
+		if(args.length > 3)
+			gen.setNoise(Double.parseDouble(args[3]));
+		if(args.length > 4)
+			gen.setPositiveRate(Double.parseDouble(args[4]));
+
+		ArffSaver saver = new ArffSaver();
+		saver.setInstances(gen.generate());
+		saver.setFile(new File(args[0]));
+		saver.writeBatch();
+	}
+
+}